@@ -0,0 +1,276 @@
+/*
+ * illumina, a pilight remote
+ *
+ * Copyright (c) 2014 Peter Heisig <http://google.com/+PeterHeisig>
+ *
+ * illumina is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * illumina is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with illumina. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package nl.pilight.illumina.service;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import nl.pilight.illumina.pilight.Device;
+
+public class CommandJournalTest extends AndroidTestCase {
+
+    private static final String HOST = "192.168.1.2";
+    private static final int PORT = 5000;
+
+    private static final int VALUE = Device.Properties.VALUE.ordinal();
+    private static final int DIMLEVEL = Device.Properties.DIMLEVEL.ordinal();
+
+    private static final int TIMEOUT = 30; // seconds
+
+    /** Full journals read back and drained by the throughput test */
+    private static final int REPLAY_ROUNDS = 50;
+
+    /** Time a full journal may take to be read back and drained, well below a handshake */
+    private static final long REPLAY_BUDGET = 50; // ms
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mThread = new HandlerThread("JOURNAL TEST");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+
+        mFile = new File(getContext().getCacheDir(), "test.journal");
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mThread.quit();
+        mFile.delete();
+
+        super.tearDown();
+    }
+
+    /**
+     * Runs the test on the thread of the journal, which must not be used on any other.
+     */
+    private void runOnJournalThread(final Runnable test) throws Throwable {
+        final CountDownLatch done = new CountDownLatch(1);
+        final Throwable[] failure = new Throwable[1];
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    test.run();
+                } catch (Throwable throwable) {
+                    failure[0] = throwable;
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+
+        assertTrue("journal thread timed out", done.await(TIMEOUT, TimeUnit.SECONDS));
+
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    private static Device createDevice(String deviceId, String value, int dimLevel) {
+        final Device device = new Device();
+
+        device.setLocationId("living");
+        device.setId(deviceId);
+        device.setValue(value);
+        device.setDimLevel(dimLevel);
+
+        return device;
+    }
+
+    public void testReplaysInOrderOfArrival() throws Throwable {
+        runOnJournalThread(new Runnable() {
+            @Override
+            public void run() {
+                final CommandJournal journal = new CommandJournal(mFile, mHandler);
+
+                journal.add(HOST, PORT, createDevice("lamp", "on", 0), VALUE);
+                journal.add(HOST, PORT, createDevice("tv", "off", 0), VALUE);
+                journal.add(HOST, PORT, createDevice("dimmer", "on", 10), DIMLEVEL);
+
+                final List<CommandJournal.Command> commands = journal.drain(HOST, PORT);
+
+                assertEquals(3, commands.size());
+                assertEquals("lamp", commands.get(0).mDeviceId);
+                assertEquals("tv", commands.get(1).mDeviceId);
+                assertEquals("dimmer", commands.get(2).mDeviceId);
+                assertTrue(journal.isEmpty());
+            }
+        });
+    }
+
+    public void testReplacesCommandForSameProperty() throws Throwable {
+        runOnJournalThread(new Runnable() {
+            @Override
+            public void run() {
+                final CommandJournal journal = new CommandJournal(mFile, mHandler);
+
+                journal.add(HOST, PORT, createDevice("lamp", "on", 0), VALUE);
+                journal.add(HOST, PORT, createDevice("tv", "on", 0), VALUE);
+                journal.add(HOST, PORT, createDevice("lamp", "on", 5), DIMLEVEL);
+                journal.add(HOST, PORT, createDevice("lamp", "off", 0), VALUE);
+
+                final List<CommandJournal.Command> commands = journal.drain(HOST, PORT);
+
+                // the replaced command moves to the end, the dim level is kept apart
+                assertEquals(3, commands.size());
+                assertEquals("tv", commands.get(0).mDeviceId);
+                assertEquals(DIMLEVEL, commands.get(1).mProperty);
+                assertEquals(5, commands.get(1).mDimLevel);
+                assertEquals(VALUE, commands.get(2).mProperty);
+                assertEquals("off", commands.get(2).mValue);
+            }
+        });
+    }
+
+    public void testKeepsLatestCommands() throws Throwable {
+        runOnJournalThread(new Runnable() {
+            @Override
+            public void run() {
+                final CommandJournal journal = new CommandJournal(mFile, mHandler);
+                final int count = CommandJournal.MAX_COMMANDS + 8;
+
+                for (int i = 0; i < count; i++) {
+                    journal.add(HOST, PORT, createDevice("device" + i, "on", 0), VALUE);
+                }
+
+                final List<CommandJournal.Command> commands = journal.drain(HOST, PORT);
+
+                assertEquals(CommandJournal.MAX_COMMANDS, commands.size());
+                assertEquals("device8", commands.get(0).mDeviceId);
+                assertEquals("device" + (count - 1),
+                        commands.get(commands.size() - 1).mDeviceId);
+            }
+        });
+    }
+
+    public void testDropsOutdatedCommands() throws Throwable {
+        runOnJournalThread(new Runnable() {
+            @Override
+            public void run() {
+                final CommandJournal journal = new CommandJournal(mFile, mHandler);
+                final long now = System.currentTimeMillis();
+
+                journal.add(HOST, PORT, createDevice("old", "on", 0), VALUE,
+                        now - CommandJournal.MAX_AGE - 1);
+                journal.add(HOST, PORT, createDevice("recent", "on", 0), VALUE,
+                        now - CommandJournal.MAX_AGE);
+
+                final List<CommandJournal.Command> commands = journal.drain(HOST, PORT, now);
+
+                assertEquals(1, commands.size());
+                assertEquals("recent", commands.get(0).mDeviceId);
+            }
+        });
+    }
+
+    public void testDropsCommandsOfOtherEndpoint() throws Throwable {
+        runOnJournalThread(new Runnable() {
+            @Override
+            public void run() {
+                final CommandJournal journal = new CommandJournal(mFile, mHandler);
+
+                journal.add(HOST, PORT, createDevice("lamp", "on", 0), VALUE);
+                journal.add(HOST, PORT + 1, createDevice("tv", "on", 0), VALUE);
+
+                assertTrue(journal.drain(HOST, PORT).isEmpty());
+            }
+        });
+    }
+
+    public void testBatchesWritesUntilFlushed() throws Throwable {
+        runOnJournalThread(new Runnable() {
+            @Override
+            public void run() {
+                final CommandJournal journal = new CommandJournal(mFile, mHandler);
+
+                for (int i = 0; i < 1000; i++) {
+                    journal.add(HOST, PORT,
+                            createDevice("lamp", i % 2 == 0 ? "on" : "off", 0), VALUE);
+                }
+
+                // queueing stays in memory, the file is written once after the delay
+                assertFalse(mFile.exists());
+
+                journal.flush();
+                assertTrue(mFile.exists());
+
+                final List<CommandJournal.Command> commands
+                        = new CommandJournal(mFile, mHandler).drain(HOST, PORT);
+
+                assertEquals(1, commands.size());
+                assertEquals("off", commands.get(0).mValue);
+            }
+        });
+    }
+
+    public void testReplaysFullJournalWithinBudget() throws Throwable {
+        runOnJournalThread(new Runnable() {
+            @Override
+            public void run() {
+                long elapsed = 0;
+
+                for (int round = 0; round < REPLAY_ROUNDS; round++) {
+                    final CommandJournal journal = new CommandJournal(mFile, mHandler);
+
+                    for (int i = 0; i < CommandJournal.MAX_COMMANDS; i++) {
+                        journal.add(HOST, PORT, createDevice("device" + i, "on", 0), VALUE);
+                    }
+
+                    journal.flush();
+
+                    // read back like after a restart of the service, then drained for replay
+                    final long startedAt = System.nanoTime();
+                    final List<CommandJournal.Command> commands
+                            = new CommandJournal(mFile, mHandler).drain(HOST, PORT);
+                    elapsed += System.nanoTime() - startedAt;
+
+                    assertEquals(CommandJournal.MAX_COMMANDS, commands.size());
+
+                    for (int i = 0; i < commands.size(); i++) {
+                        assertEquals("device" + i, commands.get(i).mDeviceId);
+                    }
+
+                    assertFalse(mFile.exists());
+                }
+
+                final long perJournal = elapsed / REPLAY_ROUNDS / 1000000;
+
+                assertTrue("full journal replayed in " + perJournal + "ms",
+                        perJournal < REPLAY_BUDGET);
+            }
+        });
+    }
+
+}
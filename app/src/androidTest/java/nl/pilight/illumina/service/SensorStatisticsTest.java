@@ -0,0 +1,103 @@
+/*
+ * illumina, a pilight remote
+ *
+ * Copyright (c) 2014 Peter Heisig <http://google.com/+PeterHeisig>
+ *
+ * illumina is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * illumina is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with illumina. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package nl.pilight.illumina.service;
+
+import android.test.AndroidTestCase;
+
+import java.util.List;
+
+import nl.pilight.illumina.pilight.Device;
+
+public class SensorStatisticsTest extends AndroidTestCase {
+
+    private static final String LOCATION_ID = "garden";
+
+    private static final int REPORTED = Device.CHANGED_TIMESTAMP | Device.CHANGED_TEMPERATURE;
+
+    private SensorHistories mHistories;
+    private Device mDevice;
+    private int mTimestamp;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mHistories = new SensorHistories(null);
+
+        mDevice = new Device();
+        mDevice.setLocationId(LOCATION_ID);
+        mDevice.setId("thermometer");
+
+        // all readings fall into the same windows
+        mTimestamp = (int) (System.currentTimeMillis() / 1000);
+    }
+
+    private void report(int temperature) {
+        mDevice.clearChanges();
+        mDevice.setTimestamp(mTimestamp);
+        mDevice.setTemperature(temperature);
+        mHistories.record(mDevice, REPORTED);
+    }
+
+    private SensorStatistics getStatistics() {
+        final List<SensorStatistics> statistics = mHistories.getStatistics(LOCATION_ID);
+
+        assertEquals(1, statistics.size());
+        return statistics.get(0);
+    }
+
+    public void testRepeatedReadingsCountWithoutChangingMean() {
+        final long now = mTimestamp * 1000L;
+
+        report(200);
+        assertEquals(1, getStatistics().getCount(SensorStatistics.WINDOW_DAY, now));
+        assertEquals(200, getStatistics().getMean(SensorStatistics.WINDOW_DAY));
+
+        report(200);
+        report(200);
+        report(200);
+
+        final SensorStatistics statistics = getStatistics();
+
+        assertEquals(4, statistics.getCount(SensorStatistics.WINDOW_HOUR, now));
+        assertEquals(4, statistics.getCount(SensorStatistics.WINDOW_DAY, now));
+        assertEquals(200, statistics.getMean(SensorStatistics.WINDOW_DAY));
+    }
+
+    public void testMeanWeighsHeldValues() {
+        final long now = mTimestamp * 1000L;
+
+        report(200);
+        report(200);
+        report(200);
+        report(260);
+
+        final SensorStatistics statistics = getStatistics();
+
+        // counting changes only would give (200 + 260) / 2
+        assertEquals(4, statistics.getCount(SensorStatistics.WINDOW_DAY, now));
+        assertEquals(215, statistics.getMean(SensorStatistics.WINDOW_DAY));
+        assertEquals(200, statistics.getMin(SensorStatistics.WINDOW_DAY));
+        assertEquals(260, statistics.getMax(SensorStatistics.WINDOW_DAY));
+        assertEquals(260, statistics.getLast());
+    }
+
+}
@@ -52,6 +52,16 @@ public class Illumina extends Application {
 
     public static final String PREF_AUTO_CONNECT = "illumina.auto_connect";
 
+    public static final String PREF_PIPELINED_HANDSHAKE = "illumina.pipelined_handshake";
+
+    public static final String PREF_IDLE_TIMEOUT = "illumina.idle_timeout";
+
+    /** Comma separated "host:port" endpoints of additional pilight daemons */
+    public static final String PREF_NODES = "illumina.nodes";
+
+    /** Seconds without bound clients before the connection is suspended */
+    public static final String DEFAULT_IDLE_TIMEOUT = "300";
+
     public static final String PREFERENCES_NAME = BuildConfig.PACKAGE_NAME + "_preferences";
 
     public static final String LOG_FILE_NAME = "application.log";
@@ -62,7 +72,7 @@ public class Illumina extends Application {
 
         /* If this service isn't started explicitly, it would be
          * destroyed if no more clients are bound */
-        startService(new Intent(this, PilightServiceImpl.class));
+        startService(new Intent(this, PilightServiceImpl.getServiceClass()));
     }
 
     public SharedPreferences getSharedPreferences() {
@@ -36,8 +36,11 @@ import nl.pilight.Illumina;
 import nl.pilight.illumina.R;
 import nl.pilight.illumina.pilight.Device;
 import nl.pilight.illumina.pilight.Location;
+import nl.pilight.illumina.service.CommandLatencyHistogram;
 import nl.pilight.illumina.service.PilightBinder;
 import nl.pilight.illumina.service.PilightService;
+import nl.pilight.illumina.service.SensorHistory;
+import nl.pilight.illumina.service.SensorStatistics;
 
 public abstract class BaseActivity extends ActionBarActivity implements
         PilightBinder.ServiceListener {
@@ -87,6 +90,11 @@ public abstract class BaseActivity extends ActionBarActivity implements
         reset();
     }
 
+    @Override
+    public void onPilightConnecting() {
+        getLogger().info("onPilightConnecting");
+    }
+
     @Override
     public void onPilightDisconnected() {
         getLogger().info("onPilightDisconnected");
@@ -123,6 +131,28 @@ public abstract class BaseActivity extends ActionBarActivity implements
         getLogger().info("onLocationResponse(" + location.getId() + ")");
     }
 
+    @Override
+    public void onCommandStatsResponse(ArrayList<CommandLatencyHistogram> histograms,
+                                       long staleUpdates) {
+        getLogger().info("onCommandStatsResponse: " + histograms + ", "
+                + staleUpdates + " stale updates");
+    }
+
+    @Override
+    public void onSceneResponse(int sceneId, boolean[] confirmed) {
+        getLogger().info("onSceneResponse(" + sceneId + ")");
+    }
+
+    @Override
+    public void onSensorHistoryResponse(SensorHistory history) {
+        getLogger().info("onSensorHistoryResponse: " + history);
+    }
+
+    @Override
+    public void onSensorStatisticsResponse(ArrayList<SensorStatistics> statistics) {
+        getLogger().info("onSensorStatisticsResponse: " + statistics);
+    }
+
     // ------------------------------------------------------------------------
     //
     //      Members
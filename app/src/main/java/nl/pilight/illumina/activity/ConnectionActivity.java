@@ -66,6 +66,13 @@ public class ConnectionActivity extends BaseActivity implements SsdpLocator.Cons
         startActivity(new Intent(this, LocationListActivity.class));
     }
 
+    @Override
+    public void onPilightConnecting() {
+        super.onPilightConnecting();
+        setBusy(true);
+        startActivity(new Intent(this, LocationListActivity.class));
+    }
+
     @Override
     public void onServiceConnected() {
         super.onServiceConnected();
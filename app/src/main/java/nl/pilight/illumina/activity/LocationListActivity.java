@@ -21,6 +21,7 @@ package nl.pilight.illumina.activity;
 
 import android.os.Bundle;
 import android.os.Message;
+import android.os.SystemClock;
 import android.support.v4.app.FragmentPagerAdapter;
 import android.support.v4.app.FragmentTransaction;
 import android.support.v4.view.ViewPager;
@@ -66,6 +67,15 @@ public class LocationListActivity extends BaseActivity {
         requestLocations();
     }
 
+    @Override
+    public void onPilightConnecting() {
+        super.onPilightConnecting();
+
+        // show the last known setting until the live one arrives
+        reset();
+        requestLocations();
+    }
+
     @Override
     public void onServiceConnected() {
         super.onServiceConnected();
@@ -76,6 +86,12 @@ public class LocationListActivity extends BaseActivity {
     public void onLocationListResponse(ArrayList<Location> locations) {
         super.onLocationListResponse(locations);
 
+        if (mCreatedAt > 0) {
+            log.info("first location list after " + (SystemClock.uptimeMillis() - mCreatedAt)
+                    + "ms" + (isDisconnected() ? " (snapshot)" : ""));
+            mCreatedAt = 0;
+        }
+
         final ActionBar actionBar = getSupportActionBar();
         final FragmentPagerAdapter pagerAdapter = new LocationPagerAdapter(
                 getSupportFragmentManager(), locations);
@@ -117,6 +133,7 @@ public class LocationListActivity extends BaseActivity {
     private ViewPager mViewPager;
     private ViewGroup mEmptyView;
     private int mSelectedLocationIndex;
+    private long mCreatedAt;
 
     private ActionBar.TabListener mTabListener = new ActionBar.TabListener() {
 
@@ -146,6 +163,8 @@ public class LocationListActivity extends BaseActivity {
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        mCreatedAt = SystemClock.uptimeMillis();
+
         super.onCreate(savedInstanceState);
         setContentView(R.layout.location_activity);
 
@@ -21,12 +21,14 @@ package nl.pilight.illumina.communication;
 
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
 import android.text.TextUtils;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.InetSocketAddress;
@@ -44,18 +46,26 @@ public class StreamingSocketImpl implements StreamingSocket {
     public static final int READ_TIMEOUT       = 5 * 1000;
     public static final int CONNECT_TIMEOUT    = 5 * 1000;
 
-    private Socket mSocket;
+    private volatile Socket mSocket;
     private Handler mHandler;
     private ReaderThread mReaderThread;
     private WriterThread mWriterThread;
-    private boolean mIsConnected = false;
+    private volatile boolean mIsConnected = false;
     private long mLastHeartBeatResponse;
     private String mHost;
     private int mPort;
 
     private BlockingQueue<String> mWriterQueue = new LinkedBlockingQueue<>();
 
-    private final Handler mReadHandler = new Handler() {
+    /** Runs on the looper of the handler passed to the constructor */
+    private final Handler mReadHandler;
+
+    private class ReadHandler extends Handler {
+
+        ReadHandler(Looper looper) {
+            super(looper);
+        }
+
         @Override
         public void handleMessage(Message msgFromReader) {
         final Bundle data = msgFromReader.getData();
@@ -80,7 +90,7 @@ public class StreamingSocketImpl implements StreamingSocket {
             mHandler.sendMessage(msg);
         }
         }
-    };
+    }
 
     private Thread mHeartBeatThread;
 
@@ -143,6 +153,7 @@ public class StreamingSocketImpl implements StreamingSocket {
 
     public StreamingSocketImpl(Handler handler) {
         mHandler = handler;
+        mReadHandler = new ReadHandler(handler.getLooper());
     }
 
     private void dispatchError() {
@@ -194,8 +205,18 @@ public class StreamingSocketImpl implements StreamingSocket {
             mWriterThread = null;
         }
 
+        final Socket socket = mSocket;
         mSocket = null;
 
+        // also aborts a pending connect, the socket is not reused
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException exception) {
+                log.warn("closing socket failed", exception);
+            }
+        }
+
         if (mIsConnected) {
             mHandler.sendMessage(mHandler.obtainMessage(MSG_DISCONNECTED));
         }
@@ -29,7 +29,10 @@ import java.util.ArrayList;
 
 import nl.pilight.illumina.pilight.Device;
 import nl.pilight.illumina.pilight.Location;
+import nl.pilight.illumina.service.CommandLatencyHistogram;
 import nl.pilight.illumina.service.PilightBinder;
+import nl.pilight.illumina.service.SensorHistory;
+import nl.pilight.illumina.service.SensorStatistics;
 
 public abstract class BaseListFragment extends ListFragment implements
         PilightBinder.ServiceListener {
@@ -46,6 +49,11 @@ public abstract class BaseListFragment extends ListFragment implements
         getLogger().info("onPilightConnected");
     }
 
+    @Override
+    public void onPilightConnecting() {
+        getLogger().info("onPilightConnecting");
+    }
+
     @Override
     public void onPilightDisconnected() {
         getLogger().info("onPilightDisconnected");
@@ -76,6 +84,28 @@ public abstract class BaseListFragment extends ListFragment implements
         getLogger().info("onLocationResponse(" + location.getId() + ")");
     }
 
+    @Override
+    public void onCommandStatsResponse(ArrayList<CommandLatencyHistogram> histograms,
+                                       long staleUpdates) {
+        getLogger().info("onCommandStatsResponse: " + histograms + ", "
+                + staleUpdates + " stale updates");
+    }
+
+    @Override
+    public void onSceneResponse(int sceneId, boolean[] confirmed) {
+        getLogger().info("onSceneResponse(" + sceneId + ")");
+    }
+
+    @Override
+    public void onSensorHistoryResponse(SensorHistory history) {
+        getLogger().info("onSensorHistoryResponse: " + history);
+    }
+
+    @Override
+    public void onSensorStatisticsResponse(ArrayList<SensorStatistics> statistics) {
+        getLogger().info("onSensorStatisticsResponse: " + statistics);
+    }
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
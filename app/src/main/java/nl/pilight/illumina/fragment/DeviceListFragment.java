@@ -37,6 +37,7 @@ import nl.pilight.illumina.R;
 import nl.pilight.illumina.pilight.Device;
 import nl.pilight.illumina.pilight.Location;
 import nl.pilight.illumina.service.PilightService;
+import nl.pilight.illumina.service.SensorHistory;
 import nl.pilight.illumina.widget.DeviceAdapter;
 
 public class DeviceListFragment extends BaseListFragment implements DeviceAdapter.DeviceChangeListener {
@@ -105,6 +106,12 @@ public class DeviceListFragment extends BaseListFragment implements DeviceAdapte
         requestLocation();
     }
 
+    @Override
+    public void onPilightConnecting() {
+        super.onPilightConnecting();
+        requestLocation();
+    }
+
     @Override
     public void onLocationResponse(Location location) {
         super.onLocationResponse(location);
@@ -119,6 +126,11 @@ public class DeviceListFragment extends BaseListFragment implements DeviceAdapte
         setListAdapter(adapter);
 
         adapter.sort(mDeviceOrderComparator);
+
+        for (Device device : location.values()) {
+            updateSensorHistories(adapter, device,
+                    Device.CHANGED_TEMPERATURE | Device.CHANGED_HUMIDITY);
+        }
         // adapter.getFilter().filter(""); // FIXME resets scroll position
     }
 
@@ -128,6 +140,17 @@ public class DeviceListFragment extends BaseListFragment implements DeviceAdapte
 
         if (TextUtils.equals(remoteDevice.getLocationId(), mLocationId)) {
             final DeviceAdapter adapter = (DeviceAdapter) getListAdapter();
+            final int position = adapter.getPosition(remoteDevice);
+
+            updateSensorHistories(adapter, remoteDevice, remoteDevice.getChanges());
+
+            if (position >= 0 && !remoteDevice.hasChanges(Device.CHANGED_SETTING)) {
+                // only values changed, the device keeps its place
+                adapter.remove(remoteDevice);
+                adapter.insert(remoteDevice, position);
+                return;
+            }
+
             adapter.remove(remoteDevice);
             adapter.add(remoteDevice);
             adapter.sort(mDeviceOrderComparator);
@@ -135,6 +158,17 @@ public class DeviceListFragment extends BaseListFragment implements DeviceAdapte
         }
     }
 
+    @Override
+    public void onSensorHistoryResponse(SensorHistory history) {
+        super.onSensorHistoryResponse(history);
+
+        final DeviceAdapter adapter = (DeviceAdapter) getListAdapter();
+
+        if (adapter != null && TextUtils.equals(history.getLocationId(), mLocationId)) {
+            adapter.setSensorHistory(history);
+        }
+    }
+
     @Override
     public void onDeviceChange(Device device, int property) {
         sendDeviceChange(device, property);
@@ -142,7 +176,8 @@ public class DeviceListFragment extends BaseListFragment implements DeviceAdapte
 
     @Override
     public void onListItemClick(ListView listView, View view, int position, long id) {
-        final Device device = (Device) getListAdapter().getItem(position);
+        // the shown device changes when the service reports it
+        final Device device = new Device((Device) getListAdapter().getItem(position));
 
         switch (device.getType()) {
             case SCREEN:
@@ -174,6 +209,42 @@ public class DeviceListFragment extends BaseListFragment implements DeviceAdapte
         dispatch(msg);
     }
 
+    /**
+     * Appends the readings of the weather sensors shown for the device whose changes are
+     * given as mask to the histories held by the adapter. Histories not received yet are
+     * requested instead.
+     */
+    private void updateSensorHistories(DeviceAdapter adapter, Device device, int changes) {
+        if (device.getType() != Device.DeviceTypes.WEATHER) {
+            return;
+        }
+
+        if ((changes & Device.CHANGED_TEMPERATURE) != 0 && device.hasTemperatureValue()
+                && device.isShowTemperature() && !adapter.addSensorReading(
+                        device, SensorHistory.SENSOR_TEMPERATURE, device.getTemperature())) {
+            requestSensorHistory(device, SensorHistory.SENSOR_TEMPERATURE);
+        }
+
+        if ((changes & Device.CHANGED_HUMIDITY) != 0 && device.hasHumidityValue()
+                && device.isShowHumidity() && !adapter.addSensorReading(
+                        device, SensorHistory.SENSOR_HUMIDITY, device.getHumidity())) {
+            requestSensorHistory(device, SensorHistory.SENSOR_HUMIDITY);
+        }
+    }
+
+    private void requestSensorHistory(Device device, int sensor) {
+        final Message msg = Message.obtain(null, PilightService.Request.SENSOR_HISTORY);
+        final Bundle bundle = new Bundle();
+
+        assert msg != null;
+        msg.arg1 = sensor;
+        bundle.putString(PilightService.Extra.LOCATION_ID, device.getLocationId());
+        bundle.putString(PilightService.Extra.DEVICE_ID, device.getId());
+        msg.setData(bundle);
+
+        dispatch(msg);
+    }
+
     private void sendDeviceChange(Device device, int property) {
         log.info("sendDeviceChange: " + device.getId());
 
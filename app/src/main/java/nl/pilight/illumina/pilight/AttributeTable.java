@@ -0,0 +1,108 @@
+/*
+ * illumina, a pilight remote
+ *
+ * Copyright (c) 2014 Peter Heisig <http://google.com/+PeterHeisig>
+ *
+ * illumina is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * illumina is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with illumina. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package nl.pilight.illumina.pilight;
+
+import org.slf4j.Logger;
+
+/**
+ * Maps a fixed set of attribute names to their index in constant time. The multiplier of
+ * the hash is searched once when the table is built, so that no two names share a slot
+ * and every lookup takes a single probe and at most one equals.
+ *
+ * Unknown names are logged sampled, only the first and then every {@link #LOG_SAMPLE}th
+ * one, so parsing large configs does not build a log message per ignored attribute.
+ */
+class AttributeTable {
+
+    public static final int UNKNOWN = -1;
+
+    /** Every how many unknown names one is logged */
+    private static final int LOG_SAMPLE = 64;
+
+    private final String[] mKeys;
+    private final int[] mIndices;
+    private final int mShift;
+    private final int mMultiplier;
+
+    // not synchronized, a lost increment only shifts the sample
+    private int mUnknownCount;
+
+    AttributeTable(String... keys) {
+        int bits = 1;
+
+        while ((1 << bits) < keys.length * 2) {
+            bits++;
+        }
+
+        // usually found within a few tries, a larger table makes it easier
+        for (;; bits++) {
+            final int size = 1 << bits;
+
+            for (int multiplier = 0x9e3779b1, tries = 0; tries < 1000;
+                 multiplier += 0x61c88646, tries++) {
+                final String[] slots = new String[size];
+                final int[] indices = new int[size];
+                boolean isCollisionFree = true;
+
+                for (int i = 0; i < keys.length && isCollisionFree; i++) {
+                    final int slot = (keys[i].hashCode() * multiplier) >>> (32 - bits);
+
+                    if (slots[slot] != null) {
+                        isCollisionFree = false;
+                    } else {
+                        slots[slot] = keys[i];
+                        indices[slot] = i;
+                    }
+                }
+
+                if (isCollisionFree) {
+                    mKeys = slots;
+                    mIndices = indices;
+                    mShift = 32 - bits;
+                    mMultiplier = multiplier;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the name in the list the table was built from, or
+     * {@link #UNKNOWN}.
+     */
+    int indexOf(String key) {
+        final int slot = (key.hashCode() * mMultiplier) >>> mShift;
+        final String candidate = mKeys[slot];
+
+        if (candidate != null && (candidate == key || candidate.equals(key))) {
+            return mIndices[slot];
+        }
+
+        return UNKNOWN;
+    }
+
+    void logUnknown(Logger log, String what, String key) {
+        if (mUnknownCount++ % LOG_SAMPLE == 0 && log.isDebugEnabled()) {
+            log.debug(what + " " + key + " ignored, " + mUnknownCount + " unknown so far");
+        }
+    }
+
+}
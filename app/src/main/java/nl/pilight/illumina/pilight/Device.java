@@ -45,6 +45,24 @@ public class Device implements Parcelable {
         VALUE,
         UPDATE
     }
+
+    /** Bits of {@link #getChanges()} */
+    public static final int CHANGED_VALUE       = 1;
+    public static final int CHANGED_DIMLEVEL    = 1 << 1;
+    public static final int CHANGED_TEMPERATURE = 1 << 2;
+    public static final int CHANGED_HUMIDITY    = 1 << 3;
+    public static final int CHANGED_BATTERY     = 1 << 4;
+    public static final int CHANGED_TIMESTAMP   = 1 << 5;
+    /** Any attribute from the config, like the name or the order */
+    public static final int CHANGED_SETTING     = 1 << 6;
+
+    /** Changes of attributes shown to the user, all but the timestamp */
+    public static final int CHANGES_SHOWN = ~CHANGED_TIMESTAMP;
+
+    /** Powers of ten by the number of device decimals */
+    private static final int[] DIVISORS = {
+            1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000, 1000000000 };
+
     private String mId;
     private String mLocationId;
     private String mName;
@@ -74,9 +92,20 @@ public class Device implements Parcelable {
     private boolean mHasSunriseValue = false;
     private boolean mHasSunsetValue = false;
     private boolean mIsReadOnly = false;
+    private int mChanges;
 
     public Device() {}
 
+    /**
+     * Copies the given device, e.g. to request a change without touching the shown state.
+     */
+    public Device(Device device) {
+        mId = device.mId;
+        mLocationId = device.mLocationId;
+        update(device);
+        mChanges = device.mChanges;
+    }
+
     public String getLocationId() {
         return mLocationId;
     }
@@ -106,7 +135,10 @@ public class Device implements Parcelable {
     }
 
     public void setValue(String value) {
-        mValue = value;
+        if (!TextUtils.equals(mValue, value)) {
+            mChanges |= CHANGED_VALUE;
+            mValue = value;
+        }
     }
 
     public DeviceTypes getType() {
@@ -130,13 +162,19 @@ public class Device implements Parcelable {
     public boolean getAll() { return mAll; }
 
     public void setDimLevel(int dimLevel) {
-        mDimLevel = dimLevel;
+        if (mDimLevel != dimLevel) {
+            mChanges |= CHANGED_DIMLEVEL;
+            mDimLevel = dimLevel;
+        }
     }
 
     public int getDimLevel() {
         return mDimLevel;
     }
 
+    /**
+     * Returns the temperature as fixed point value, see {@link #getDeviceDivisor()}.
+     */
     public int getTemperature() {
         return mTemperature;
     }
@@ -159,13 +197,20 @@ public class Device implements Parcelable {
 
     public int getMinInterval() { return mMinInterval; }
 
+    public boolean isReadOnly() {
+        return mIsReadOnly;
+    }
+
     public void setReadOnly(boolean readOnly) {
         mIsReadOnly = readOnly;
     }
 
     public void setTemperature(int temperature) {
-        mHasTemperatureValue = true;
-        mTemperature = temperature;
+        if (!mHasTemperatureValue || mTemperature != temperature) {
+            mChanges |= CHANGED_TEMPERATURE;
+            mHasTemperatureValue = true;
+            mTemperature = temperature;
+        }
     }
 
     public void setSunrise(int sunrise) {
@@ -179,7 +224,10 @@ public class Device implements Parcelable {
     }
 
     public void setTimestamp(int timestamp) {
-        mTimestamp = timestamp;
+        if (mTimestamp != timestamp) {
+            mChanges |= CHANGED_TIMESTAMP;
+            mTimestamp = timestamp;
+        }
     }
 
     public void setPollInterval(int pollinterval) { mPollInterval = pollinterval; }
@@ -223,21 +271,30 @@ public class Device implements Parcelable {
     }
 
     public void setHealthyBattery(boolean hasHealthyBattery) {
-        mHasBatteryValue = true;
-        mHasHealthyBattery = hasHealthyBattery;
+        if (!mHasBatteryValue || mHasHealthyBattery != hasHealthyBattery) {
+            mChanges |= CHANGED_BATTERY;
+            mHasBatteryValue = true;
+            mHasHealthyBattery = hasHealthyBattery;
+        }
     }
 
     public void setShowTemperature(boolean showTemperature) {
         mShowTemperature = showTemperature;
     }
 
+    /**
+     * Returns the humidity in percent as fixed point value, see {@link #getDeviceDivisor()}.
+     */
     public int getHumidity() {
         return mHumidity;
     }
 
     public void setHumidity(int humidity) {
-        mHasHumidityValue = true;
-        mHumidity = humidity;
+        if (!mHasHumidityValue || mHumidity != humidity) {
+            mChanges |= CHANGED_HUMIDITY;
+            mHasHumidityValue = true;
+            mHumidity = humidity;
+        }
     }
 
     public boolean isShowHumidity() {
@@ -280,6 +337,29 @@ public class Device implements Parcelable {
         mDeviceDecimals = decimals;
     }
 
+    /**
+     * Returns the divisor of the fixed point sensor values, 10 to the power of the device
+     * decimals.
+     */
+    public int getDeviceDivisor() {
+        return DIVISORS[Math.max(0, Math.min(mDeviceDecimals, DIVISORS.length - 1))];
+    }
+
+    /**
+     * Returns the CHANGED_ bits of the attributes changed since {@link #clearChanges()}.
+     */
+    public int getChanges() {
+        return mChanges;
+    }
+
+    public boolean hasChanges(int mask) {
+        return (mChanges & mask) != 0;
+    }
+
+    public void clearChanges() {
+        mChanges = 0;
+    }
+
     public boolean isOn() {
         return TextUtils.equals(mValue, VALUE_ON);
     }
@@ -316,8 +396,8 @@ public class Device implements Parcelable {
         mLocationId = parcel.readString();
         mName = parcel.readString();
         mOrder = parcel.readInt();
-        mMinInterval = parcel.readInt();
         mTimestamp = parcel.readInt();
+        mMinInterval = parcel.readInt();
         mPollInterval = parcel.readInt();
         mValue = parcel.readString();
         mAll = Boolean.parseBoolean(parcel.readString());
@@ -341,6 +421,7 @@ public class Device implements Parcelable {
         mHasSunriseValue = Boolean.parseBoolean(parcel.readString());
         mHasSunsetValue = Boolean.parseBoolean(parcel.readString());
         mIsReadOnly = Boolean.parseBoolean(parcel.readString());
+        mChanges = parcel.readInt();
     }
 
     @Override
@@ -371,9 +452,10 @@ public class Device implements Parcelable {
         parcel.writeString(mHasBatteryValue ? "true" : "false");
         parcel.writeString(mHasHumidityValue ? "true" : "false");
         parcel.writeString(mHasTemperatureValue ? "true" : "false");
-        parcel.writeString(mHasSunsetValue ? "true" : "false");
         parcel.writeString(mHasSunriseValue ? "true" : "false");
+        parcel.writeString(mHasSunsetValue ? "true" : "false");
         parcel.writeString(mIsReadOnly ? "true" : "false");
+        parcel.writeInt(mChanges);
     }
 
     @Override
@@ -386,6 +468,94 @@ public class Device implements Parcelable {
         return mName;
     }
 
+    /**
+     * Takes over all attributes of the given device with the same id, returns whether
+     * any of them differed. The changed attributes are reported by {@link #getChanges()}.
+     */
+    public boolean update(Device device) {
+        int changes = 0;
+
+        if (!TextUtils.equals(mValue, device.mValue)) {
+            changes |= CHANGED_VALUE;
+        }
+
+        if (mDimLevel != device.mDimLevel) {
+            changes |= CHANGED_DIMLEVEL;
+        }
+
+        if (mTemperature != device.mTemperature
+                || mHasTemperatureValue != device.mHasTemperatureValue) {
+            changes |= CHANGED_TEMPERATURE;
+        }
+
+        if (mHumidity != device.mHumidity || mHasHumidityValue != device.mHasHumidityValue) {
+            changes |= CHANGED_HUMIDITY;
+        }
+
+        if (mHasHealthyBattery != device.mHasHealthyBattery
+                || mHasBatteryValue != device.mHasBatteryValue) {
+            changes |= CHANGED_BATTERY;
+        }
+
+        if (mTimestamp != device.mTimestamp) {
+            changes |= CHANGED_TIMESTAMP;
+        }
+
+        if (!TextUtils.equals(mName, device.mName)
+                || mOrder != device.mOrder
+                || mMinInterval != device.mMinInterval
+                || mPollInterval != device.mPollInterval
+                || mType != device.mType
+                || mSunrise != device.mSunrise
+                || mSunset != device.mSunset
+                || mGUIDecimals != device.mGUIDecimals
+                || mDeviceDecimals != device.mDeviceDecimals
+                || mAll != device.mAll
+                || mShowTemperature != device.mShowTemperature
+                || mShowHumidity != device.mShowHumidity
+                || mShowSunriseset != device.mShowSunriseset
+                || mShowBattery != device.mShowBattery
+                || mShowUpdate != device.mShowUpdate
+                || mHasSunriseValue != device.mHasSunriseValue
+                || mHasSunsetValue != device.mHasSunsetValue
+                || mIsReadOnly != device.mIsReadOnly) {
+            changes |= CHANGED_SETTING;
+        }
+
+        if (changes != 0) {
+            mName = device.mName;
+            mValue = device.mValue;
+            mOrder = device.mOrder;
+            mTimestamp = device.mTimestamp;
+            mMinInterval = device.mMinInterval;
+            mPollInterval = device.mPollInterval;
+            mType = device.mType;
+            mDimLevel = device.mDimLevel;
+            mTemperature = device.mTemperature;
+            mHumidity = device.mHumidity;
+            mSunrise = device.mSunrise;
+            mSunset = device.mSunset;
+            mGUIDecimals = device.mGUIDecimals;
+            mDeviceDecimals = device.mDeviceDecimals;
+            mAll = device.mAll;
+            mShowTemperature = device.mShowTemperature;
+            mShowHumidity = device.mShowHumidity;
+            mShowSunriseset = device.mShowSunriseset;
+            mShowBattery = device.mShowBattery;
+            mShowUpdate = device.mShowUpdate;
+            mHasHealthyBattery = device.mHasHealthyBattery;
+            mHasBatteryValue = device.mHasBatteryValue;
+            mHasTemperatureValue = device.mHasTemperatureValue;
+            mHasHumidityValue = device.mHasHumidityValue;
+            mHasSunriseValue = device.mHasSunriseValue;
+            mHasSunsetValue = device.mHasSunsetValue;
+            mIsReadOnly = device.mIsReadOnly;
+        }
+
+        mChanges = changes;
+        return changes != 0;
+    }
+
     public boolean isWritable() {
         switch (mType) {
             case DIMMER:
@@ -0,0 +1,52 @@
+/*
+ * illumina, a pilight remote
+ *
+ * Copyright (c) 2014 Peter Heisig <http://google.com/+PeterHeisig>
+ *
+ * illumina is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * illumina is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with illumina. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package nl.pilight.illumina.pilight;
+
+import org.json.JSONObject;
+
+/**
+ * Type specific handling of the devices of one pilight device type. The common attributes
+ * and values are handled by {@link Setting}, a decoder only deals with what is special to
+ * its type. Decoders are registered with {@link DeviceDecoders}.
+ */
+public class DeviceDecoder {
+
+    private final Device.DeviceTypes mType;
+
+    public DeviceDecoder(Device.DeviceTypes type) {
+        mType = type;
+    }
+
+    public Device.DeviceTypes getType() {
+        return mType;
+    }
+
+    /**
+     * Called once the common attributes of a device in the config were parsed.
+     */
+    public void parse(Device device, JSONObject jsonDevice) {}
+
+    /**
+     * Called while the setting is locked, after the values of an update were applied.
+     */
+    public void update(Device device) {}
+
+}
@@ -0,0 +1,88 @@
+/*
+ * illumina, a pilight remote
+ *
+ * Copyright (c) 2014 Peter Heisig <http://google.com/+PeterHeisig>
+ *
+ * illumina is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * illumina is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with illumina. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package nl.pilight.illumina.pilight;
+
+/**
+ * Decoders by pilight device type id and by {@link Device.DeviceTypes}, both kept in dense
+ * arrays so that a lookup costs a bounds check. Further types are registered before the
+ * first setting is parsed, usually when the application starts.
+ */
+public final class DeviceDecoders {
+
+    private static final DeviceDecoder UNKNOWN = new DeviceDecoder(Device.DeviceTypes.UNKNOWN);
+
+    // replaced, never modified, by register() so readers need no lock
+    private static volatile DeviceDecoder[] sByPilightType = new DeviceDecoder[0];
+    private static volatile DeviceDecoder[] sByType = new DeviceDecoder[0];
+
+    static {
+        final DeviceDecoder switchDecoder = new DeviceDecoder(Device.DeviceTypes.SWITCH);
+
+        register(1, switchDecoder);
+        register(2, new DeviceDecoder(Device.DeviceTypes.DIMMER));
+        register(3, new DeviceDecoder(Device.DeviceTypes.WEATHER));
+        register(4, switchDecoder);
+        register(5, new DeviceDecoder(Device.DeviceTypes.SCREEN));
+        register(6, new DeviceDecoder(Device.DeviceTypes.CONTACT));
+    }
+
+    private DeviceDecoders() {}
+
+    /**
+     * Handles devices of the given pilight type id with the decoder, replacing the one
+     * registered before.
+     */
+    public static synchronized void register(int pilightType, DeviceDecoder decoder) {
+        sByPilightType = put(sByPilightType, pilightType, decoder);
+        sByType = put(sByType, decoder.getType().ordinal(), decoder);
+    }
+
+    private static DeviceDecoder[] put(DeviceDecoder[] decoders, int index,
+                                       DeviceDecoder decoder) {
+        final DeviceDecoder[] copy = new DeviceDecoder[Math.max(decoders.length, index + 1)];
+
+        System.arraycopy(decoders, 0, copy, 0, decoders.length);
+        copy[index] = decoder;
+        return copy;
+    }
+
+    /**
+     * Returns the decoder of the pilight type id, or one for unknown devices.
+     */
+    public static DeviceDecoder forPilightType(int pilightType) {
+        final DeviceDecoder[] decoders = sByPilightType;
+
+        if (pilightType < 0 || pilightType >= decoders.length
+                || decoders[pilightType] == null) {
+            return UNKNOWN;
+        }
+
+        return decoders[pilightType];
+    }
+
+    public static DeviceDecoder forType(Device.DeviceTypes type) {
+        final DeviceDecoder[] decoders = sByType;
+        final int index = type.ordinal();
+
+        return index < decoders.length && decoders[index] != null ? decoders[index] : UNKNOWN;
+    }
+
+}
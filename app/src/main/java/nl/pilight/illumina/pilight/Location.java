@@ -26,6 +26,7 @@ import android.os.Parcelable;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -67,6 +68,19 @@ public class Location implements Parcelable {
 
     public Location() {}
 
+    /**
+     * Copies the location together with its devices.
+     */
+    public Location(Location location) {
+        mId = location.mId;
+        mName = location.mName;
+        mOrder = location.mOrder;
+
+        for (Device device : location.values()) {
+            mDevices.put(device.getId(), new Device(device));
+        }
+    }
+
     public static final Parcelable.Creator<Location> CREATOR
             = new Parcelable.Creator<Location>() {
 
@@ -143,6 +157,29 @@ public class Location implements Parcelable {
         }
     }
 
+    public void put(Device device) {
+        mDevices.put(device.getId(), device);
+    }
+
+    /**
+     * Whether both locations hold devices with the same ids in the same order.
+     */
+    public boolean hasSameDevices(Location location) {
+        if (size() != location.size()) {
+            return false;
+        }
+
+        final Iterator<String> otherDeviceIds = location.mDevices.keySet().iterator();
+
+        for (String deviceId : mDevices.keySet()) {
+            if (!deviceId.equals(otherDeviceIds.next())) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
     public Device get(String deviceId) {
         return mDevices.get(deviceId);
     }
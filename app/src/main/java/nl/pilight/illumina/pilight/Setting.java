@@ -20,6 +20,8 @@
 
 package nl.pilight.illumina.pilight;
 
+import android.text.TextUtils;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -39,14 +41,65 @@ public class Setting extends LinkedHashMap<String, Location> {
 
     public static final Logger log = LoggerFactory.getLogger(Setting.class);
 
+    private static final int LOCATION_NAME = 0;
+    private static final int LOCATION_ORDER = 1;
+
+    private static final AttributeTable LOCATION_ATTRIBUTES = new AttributeTable(
+            "name", "order");
+
+    private static final int DEVICE_NAME = 0;
+    private static final int DEVICE_ORDER = 1;
+    private static final int DEVICE_STATE = 2;
+    private static final int DEVICE_DIMLEVEL = 3;
+    private static final int DEVICE_TEMPERATURE = 4;
+    private static final int DEVICE_HUMIDITY = 5;
+    private static final int DEVICE_BATTERY = 6;
+    private static final int DEVICE_TYPE = 7;
+    private static final int DEVICE_SUNRISE = 8;
+    private static final int DEVICE_SUNSET = 9;
+    private static final int DEVICE_ALL = 10;
+    private static final int DEVICE_TIMESTAMP = 11;
+    private static final int DEVICE_MIN_INTERVAL = 12;
+    private static final int DEVICE_POLL_INTERVAL = 13;
+    private static final int DEVICE_GUI_SHOW_BATTERY = 14;
+    private static final int DEVICE_GUI_SHOW_TEMPERATURE = 15;
+    private static final int DEVICE_GUI_SHOW_HUMIDITY = 16;
+    private static final int DEVICE_GUI_SHOW_SUNRISESET = 17;
+    private static final int DEVICE_GUI_SHOW_UPDATE = 18;
+    private static final int DEVICE_GUI_DECIMALS = 19;
+    private static final int DEVICE_DEVICE_DECIMALS = 20;
+    private static final int DEVICE_GUI_READONLY = 21;
+
+    /** In the order of the DEVICE_ constants */
+    private static final AttributeTable DEVICE_ATTRIBUTES = new AttributeTable(
+            "name", "order", "state", "dimlevel", "temperature", "humidity", "battery",
+            "type", "sunrise", "sunset", "all", "timestamp", "min-interval", "poll-interval",
+            "gui-show-battery", "gui-show-temperature", "gui-show-humidity",
+            "gui-show-sunriseset", "gui-show-update", "gui-decimals", "device-decimals",
+            "gui-readonly");
+
     private final RemoteChangeHandler mRemoteChangeHandler;
 
+    /** Devices by location and device id, see {@link #getIndex()} */
+    private Map<String, Device> mIndex;
+
     public interface RemoteChangeHandler {
 
-        void onRemoteChange(Device device);
+        /**
+         * @param reported the Device.CHANGED_ bits of the attributes pilight reported,
+         *                 changed or not, see {@link Device#getChanges()} for the changed ones
+         */
+        void onRemoteChange(Device device, int reported);
+
+        /** Called instead of {@link #onRemoteChange(Device, int)} for an outdated update */
+        void onStaleUpdate(Device device);
 
     }
 
+    Setting(RemoteChangeHandler handler) {
+        mRemoteChangeHandler = handler;
+    }
+
     private Setting(RemoteChangeHandler handler,
                     JSONObject locationsJson) throws JSONException {
 
@@ -77,12 +130,12 @@ public class Setting extends LinkedHashMap<String, Location> {
         while (locationJsonIterator.hasNext()) {
             final String currentLocationAttribute = (String) locationJsonIterator.next();
 
-            switch (currentLocationAttribute) {
-                case "name":
+            switch (LOCATION_ATTRIBUTES.indexOf(currentLocationAttribute)) {
+                case LOCATION_NAME:
                     location.setName(jsonLocation.optString(currentLocationAttribute).trim());
                     break;
 
-                case "order":
+                case LOCATION_ORDER:
                     location.setOrder(jsonLocation.optInt(currentLocationAttribute));
                     break;
 
@@ -96,8 +149,8 @@ public class Setting extends LinkedHashMap<String, Location> {
                         device.setLocationId(location.getId());
                         devices.put(currentLocationAttribute, device);
                     } else {
-                        log.debug("unhandled device parameter " + currentLocationAttribute
-                                + ":" + jsonLocation.optString(currentLocationAttribute));
+                        LOCATION_ATTRIBUTES.logUnknown(log, "location parameter",
+                                currentLocationAttribute);
                     }
 
                     break;
@@ -115,177 +168,172 @@ public class Setting extends LinkedHashMap<String, Location> {
         while (deviceJsonIterator.hasNext()) {
             final String currentDeviceAttribute = (String) deviceJsonIterator.next();
 
-            switch (currentDeviceAttribute) {
-                case "name":
+            switch (DEVICE_ATTRIBUTES.indexOf(currentDeviceAttribute)) {
+                case DEVICE_NAME:
                     device.setName(jsonDevice.optString(currentDeviceAttribute).trim());
                     break;
 
-                case "order":
+                case DEVICE_ORDER:
                     device.setOrder(jsonDevice.optInt(currentDeviceAttribute));
                     break;
 
-                case "state":
+                case DEVICE_STATE:
                     device.setValue(jsonDevice.optString(currentDeviceAttribute));
                     break;
 
-                case "dimlevel":
+                case DEVICE_DIMLEVEL:
                     device.setDimLevel(jsonDevice.optInt(currentDeviceAttribute));
                     break;
 
-                case "temperature":
+                case DEVICE_TEMPERATURE:
                     device.setTemperature(jsonDevice.optInt(currentDeviceAttribute));
                     break;
 
-                case "humidity":
+                case DEVICE_HUMIDITY:
                     device.setHumidity(jsonDevice.optInt(currentDeviceAttribute));
                     break;
 
-                case "battery":
+                case DEVICE_BATTERY:
                     device.setHealthyBattery(jsonDevice.optInt(currentDeviceAttribute) == 1);
                     break;
 
-                case "type":
-                    switch(jsonDevice.optInt(currentDeviceAttribute)){
-                        case 1:
-                        case 4:
-                            device.setType(Device.DeviceTypes.SWITCH);
-                            break;
-                        case 2:
-                            device.setType(Device.DeviceTypes.DIMMER);
-                            break;
-                        case 3:
-                            device.setType(Device.DeviceTypes.WEATHER);
-                            break;
-                        case 5:
-                            device.setType(Device.DeviceTypes.SCREEN);
-                            break;
-                        case 6:
-                            device.setType(Device.DeviceTypes.CONTACT);
-                            break;
-                        default:
-                            device.setType(Device.DeviceTypes.UNKNOWN);
-                            break;
-
-                    }
+                case DEVICE_TYPE:
+                    device.setType(DeviceDecoders.forPilightType(
+                            jsonDevice.optInt(currentDeviceAttribute)).getType());
+                    break;
 
-                case "sunrise":
+                case DEVICE_SUNRISE:
                     device.setSunrise(jsonDevice.optInt(currentDeviceAttribute));
                     break;
 
-                case "sunset":
+                case DEVICE_SUNSET:
                     device.setSunset(jsonDevice.optInt(currentDeviceAttribute));
                     break;
 
-                case "all":
-                    device.setAll(1 == 1);
+                case DEVICE_ALL:
+                    device.setAll(true);
                     break;
 
-                case "timestamp":
+                case DEVICE_TIMESTAMP:
                     device.setTimestamp(jsonDevice.optInt(currentDeviceAttribute));
                     break;
 
-                case "min-interval":
+                case DEVICE_MIN_INTERVAL:
                     device.setMinInterval(jsonDevice.optInt(currentDeviceAttribute));
                     break;
 
-                case "poll-interval":
+                case DEVICE_POLL_INTERVAL:
                     device.setPollInterval(jsonDevice.optInt(currentDeviceAttribute));
                     break;
 
                 /* Device GUI settings */
-                case "gui-show-battery":
+                case DEVICE_GUI_SHOW_BATTERY:
                     device.setShowBattery(jsonDevice.optInt(currentDeviceAttribute) == 1);
                     break;
 
-                case "gui-show-temperature":
+                case DEVICE_GUI_SHOW_TEMPERATURE:
                     device.setShowTemperature(jsonDevice.optInt(currentDeviceAttribute) == 1);
                     break;
 
-                case "gui-show-humidity":
+                case DEVICE_GUI_SHOW_HUMIDITY:
                     device.setShowHumidity(jsonDevice.optInt(currentDeviceAttribute) == 1);
                     break;
 
-                case "gui-show-sunriseset":
+                case DEVICE_GUI_SHOW_SUNRISESET:
                     device.setShowSunriseset(jsonDevice.optInt(currentDeviceAttribute) == 1);
                     break;
 
-                case "gui-show-update":
+                case DEVICE_GUI_SHOW_UPDATE:
                     device.setShowUpdate(jsonDevice.optInt(currentDeviceAttribute) == 1);
                     break;
 
-                case "gui-decimals":
+                case DEVICE_GUI_DECIMALS:
                     device.setGUIDecimals(jsonDevice.optInt(currentDeviceAttribute));
                     break;
 
-                case "device-decimals":
+                case DEVICE_DEVICE_DECIMALS:
                     device.setDeviceDecimals(jsonDevice.optInt(currentDeviceAttribute));
                     break;
 
-                case "gui-readonly":
+                case DEVICE_GUI_READONLY:
                     device.setReadOnly(jsonDevice.optInt(currentDeviceAttribute) == 1);
                     break;
 
                 default:
-                    log.debug("unhandled setting " + currentDeviceAttribute
-                            + ":" + jsonDevice.optString(currentDeviceAttribute));
+                    DEVICE_ATTRIBUTES.logUnknown(log, "device setting", currentDeviceAttribute);
                     break;
             }
         }
 
+        DeviceDecoders.forType(device.getType()).parse(device, jsonDevice);
         return device;
     }
 
-    private void updateDevices(String locationId, JSONArray deviceIds, JSONObject jsonValues) {
+    private void updateDevices(String locationId, JSONArray deviceIds, ValueUpdate update) {
+        final Map<String, Device> index = getIndex();
         final int deviceCount = deviceIds.length();
 
         for (int i = 0; i < deviceCount; i++) {
-            try {
-                final String deviceId = deviceIds.getString(i);
-                updateDevice(get(locationId).get(deviceId), jsonValues);
-            } catch (JSONException exception) {
-                log.warn("- updating values failed", exception);
-            }
-        }
-    }
+            final String deviceId = deviceIds.optString(i);
+            final Device device = index.get(getIndexKey(locationId, deviceId));
 
-    private void updateDevice(Device device, JSONObject jsonValues) throws JSONException {
-        final Iterator jsonValuesIterator = jsonValues.keys();
+            if (device == null) {
+                log.info("- unknown device " + locationId + "/" + deviceId + " ignored");
+                continue;
+            }
 
-        while (jsonValuesIterator.hasNext()) {
-            final String valueKey = (String) jsonValuesIterator.next();
+            // after a reconnect or a resync older values may arrive late, they are dropped
+            if (update.isOlderThan(device)) {
+                log.info("- stale update of " + locationId + "/" + deviceId + " dropped");
+                mRemoteChangeHandler.onStaleUpdate(device);
+                continue;
+            }
 
-            switch (valueKey) {
-                case "timestamp":
-                    device.setTimestamp(jsonValues.optInt(valueKey));
-                    break;
+            // the handler learns from the change mask whether anything changed at all
+            device.clearChanges();
+            update.apply(device);
+            DeviceDecoders.forType(device.getType()).update(device);
+            mRemoteChangeHandler.onRemoteChange(device, update.getReported());
+        }
+    }
 
-                case "state":
-                    device.setValue(jsonValues.getString(valueKey));
-                    break;
+    private static String getIndexKey(String locationId, String deviceId) {
+        return locationId + '\u0000' + deviceId;
+    }
 
-                case "dimlevel":
-                    device.setDimLevel(jsonValues.getInt(valueKey));
-                    break;
+    /**
+     * Returns all devices by location and device id, built on first use.
+     */
+    private Map<String, Device> getIndex() {
+        if (mIndex == null) {
+            mIndex = new HashMap<>();
 
-                case "temperature":
-                    device.setTemperature(jsonValues.optInt(valueKey));
-                    break;
+            for (Location location : values()) {
+                for (Device device : location.values()) {
+                    mIndex.put(getIndexKey(location.getId(), device.getId()), device);
+                }
+            }
+        }
 
-                case "humidity":
-                    device.setHumidity(jsonValues.optInt(valueKey));
-                    break;
+        return mIndex;
+    }
 
-                case "battery":
-                    device.setHealthyBattery(jsonValues.optInt(valueKey) == 1);
-                    break;
+    @Override
+    public Location put(String locationId, Location location) {
+        mIndex = null;
+        return super.put(locationId, location);
+    }
 
-                default:
-                    log.info("device value ignored: " + valueKey);
-                    break;
-            }
-        }
+    @Override
+    public Location remove(Object locationId) {
+        mIndex = null;
+        return super.remove(locationId);
+    }
 
-        mRemoteChangeHandler.onRemoteChange(device);
+    @Override
+    public void clear() {
+        mIndex = null;
+        super.clear();
     }
 
     private void addSorted(Map<String, Location> locations) {
@@ -318,18 +366,86 @@ public class Setting extends LinkedHashMap<String, Location> {
         return new Setting(handler, json);
     }
 
-    public void update(JSONObject json) {
+    /**
+     * Takes over the devices of a freshly parsed setting, keeping the existing objects.
+     * Changed devices are reported to the remote change handler. Returns false without
+     * changing anything if locations or devices were added, removed or reordered,
+     * the setting has to be replaced then.
+     */
+    public synchronized boolean merge(Setting setting) {
+        if (!hasSameStructure(setting)) {
+            return false;
+        }
+
+        int changeCount = 0;
+
+        for (Location location : values()) {
+            final Location otherLocation = setting.get(location.getId());
+
+            for (Device device : location.values()) {
+                if (device.update(otherLocation.get(device.getId()))) {
+                    // the config reports every attribute
+                    mRemoteChangeHandler.onRemoteChange(device, ~0);
+                    changeCount++;
+                }
+            }
+        }
+
+        log.info("merged setting, " + changeCount + " devices changed");
+        return true;
+    }
+
+    private boolean hasSameStructure(Setting setting) {
+        if (size() != setting.size()) {
+            return false;
+        }
+
+        final Iterator<Location> otherLocations = setting.values().iterator();
+
+        for (Location location : values()) {
+            final Location otherLocation = otherLocations.next();
+
+            if (!TextUtils.equals(location.getId(), otherLocation.getId())
+                    || !TextUtils.equals(location.getName(), otherLocation.getName())
+                    || location.getOrder() != otherLocation.getOrder()
+                    || !location.hasSameDevices(otherLocation)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Applies the values of a pilight update. Readers on other threads synchronize on
+     * the setting to see consistent devices.
+     */
+    public synchronized void update(JSONObject json) {
         log.info("update setting");
 
         final JSONObject jsonDevices = json.optJSONObject("devices");
         final JSONObject jsonValues = json.optJSONObject("values");
+
+        if (jsonDevices == null || jsonValues == null) {
+            log.info("- no devices or values");
+            return;
+        }
+
+        final long startedAt = System.nanoTime();
+        final ValueUpdate update = ValueUpdate.compile(jsonValues);
         final Iterator locationIterator = jsonDevices.keys();
 
         while (locationIterator.hasNext()) {
             final String locationId = (String) locationIterator.next();
             final JSONArray deviceIds = jsonDevices.optJSONArray(locationId);
 
-            updateDevices(locationId, deviceIds, jsonValues);
+            if (deviceIds != null) {
+                updateDevices(locationId, deviceIds, update);
+            }
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("- applied in " + (System.nanoTime() - startedAt) / 1000 + "us");
         }
     }
 
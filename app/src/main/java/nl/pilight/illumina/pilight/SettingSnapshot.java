@@ -0,0 +1,302 @@
+/*
+ * illumina, a pilight remote
+ *
+ * Copyright (c) 2014 Peter Heisig <http://google.com/+PeterHeisig>
+ *                    CurlyMo <http://www.pilight.org>
+ *
+ * illumina is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * illumina is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with illumina. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.pilight.illumina.pilight;
+
+import android.text.TextUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Compact binary image of a {@link Setting}, used to show the last known locations
+ * and device states while the connection to pilight is still being established.
+ *
+ * The file is written to a temporary file first and renamed afterwards, so a
+ * crash while writing never leaves a broken snapshot behind.
+ */
+public class SettingSnapshot {
+
+    public static final Logger log = LoggerFactory.getLogger(SettingSnapshot.class);
+
+    private static final int MAGIC = 0x504c5353; // "PLSS"
+    private static final int VERSION = 1;
+
+    private static final int FLAG_ALL                  = 1;
+    private static final int FLAG_HEALTHY_BATTERY      = 1 << 1;
+    private static final int FLAG_HAS_BATTERY          = 1 << 2;
+    private static final int FLAG_HAS_TEMPERATURE      = 1 << 3;
+    private static final int FLAG_HAS_HUMIDITY         = 1 << 4;
+    private static final int FLAG_HAS_SUNRISE          = 1 << 5;
+    private static final int FLAG_HAS_SUNSET           = 1 << 6;
+    private static final int FLAG_SHOW_TEMPERATURE     = 1 << 7;
+    private static final int FLAG_SHOW_HUMIDITY        = 1 << 8;
+    private static final int FLAG_SHOW_BATTERY         = 1 << 9;
+    private static final int FLAG_SHOW_SUNRISESET      = 1 << 10;
+    private static final int FLAG_SHOW_UPDATE          = 1 << 11;
+    private static final int FLAG_READ_ONLY            = 1 << 12;
+
+    private static final Device.DeviceTypes[] TYPES = Device.DeviceTypes.values();
+
+    private SettingSnapshot() {}
+
+    public static void write(File file, Setting setting, String host, int port) throws IOException {
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile)));
+
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, host);
+            out.writeInt(port);
+            out.writeInt(setting.size());
+
+            for (Location location : setting.values()) {
+                writeString(out, location.getId());
+                writeString(out, location.getName());
+                out.writeInt(location.getOrder());
+                out.writeInt(location.size());
+
+                for (Device device : location.values()) {
+                    writeDevice(out, device);
+                }
+            }
+
+        } finally {
+            out.close();
+        }
+
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("renaming " + tmpFile + " failed");
+        }
+    }
+
+    /**
+     * Reads the snapshot of the given endpoint, or returns null if there is none.
+     */
+    public static Setting read(File file, Setting.RemoteChangeHandler handler,
+                               String host, int port) {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        FileInputStream in = null;
+
+        try {
+            in = new FileInputStream(file);
+
+            final FileChannel channel = in.getChannel();
+            final MappedByteBuffer buffer = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                log.info("snapshot has an unknown format, ignored");
+                return null;
+            }
+
+            if (!TextUtils.equals(readString(buffer), host) || buffer.getInt() != port) {
+                log.info("snapshot belongs to another endpoint, ignored");
+                return null;
+            }
+
+            final Setting setting = new Setting(handler);
+            final int locationCount = buffer.getInt();
+
+            for (int i = 0; i < locationCount; i++) {
+                final Location location = new Location();
+
+                location.setId(readString(buffer));
+                location.setName(readString(buffer));
+                location.setOrder(buffer.getInt());
+
+                final int deviceCount = buffer.getInt();
+
+                for (int j = 0; j < deviceCount; j++) {
+                    final Device device = readDevice(buffer);
+
+                    device.setLocationId(location.getId());
+                    location.put(device);
+                }
+
+                setting.put(location.getId(), location);
+            }
+
+            return setting;
+
+        } catch (IOException | BufferUnderflowException exception) {
+            log.warn("reading snapshot failed", exception);
+            return null;
+
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException exception) {
+                    log.warn("closing snapshot failed", exception);
+                }
+            }
+        }
+    }
+
+    private static void writeDevice(DataOutputStream out, Device device) throws IOException {
+        int flags = 0;
+
+        flags |= device.getAll() ? FLAG_ALL : 0;
+        flags |= device.hasHealthyBattery() ? FLAG_HEALTHY_BATTERY : 0;
+        flags |= device.hasBatteryValue() ? FLAG_HAS_BATTERY : 0;
+        flags |= device.hasTemperatureValue() ? FLAG_HAS_TEMPERATURE : 0;
+        flags |= device.hasHumidityValue() ? FLAG_HAS_HUMIDITY : 0;
+        flags |= device.hasSunriseValue() ? FLAG_HAS_SUNRISE : 0;
+        flags |= device.hasSunsetValue() ? FLAG_HAS_SUNSET : 0;
+        flags |= device.isShowTemperature() ? FLAG_SHOW_TEMPERATURE : 0;
+        flags |= device.isShowHumidity() ? FLAG_SHOW_HUMIDITY : 0;
+        flags |= device.isShowBattery() ? FLAG_SHOW_BATTERY : 0;
+        flags |= device.isShowSunriseset() ? FLAG_SHOW_SUNRISESET : 0;
+        flags |= device.isShowUpdate() ? FLAG_SHOW_UPDATE : 0;
+        flags |= device.isReadOnly() ? FLAG_READ_ONLY : 0;
+
+        writeString(out, device.getId());
+        writeString(out, device.getName());
+        writeString(out, device.getValue());
+        out.writeInt(device.getType().ordinal());
+        out.writeInt(flags);
+        out.writeInt(device.getOrder());
+        out.writeInt(device.getTimestamp());
+        out.writeInt(device.getMinInterval());
+        out.writeInt(device.getPollInterval());
+        out.writeInt(device.getDimLevel());
+        out.writeInt(device.getTemperature());
+        out.writeInt(device.getHumidity());
+        out.writeInt(device.getSunrise());
+        out.writeInt(device.getSunset());
+        out.writeInt(device.getGUIDecimals());
+        out.writeInt(device.getDeviceDecimals());
+    }
+
+    private static Device readDevice(ByteBuffer buffer) throws IOException {
+        final Device device = new Device();
+
+        device.setId(readString(buffer));
+        device.setName(readString(buffer));
+        device.setValue(readString(buffer));
+
+        final int type = buffer.getInt();
+
+        if (type < 0 || type >= TYPES.length) {
+            throw new IOException("unknown device type " + type);
+        }
+
+        device.setType(TYPES[type]);
+
+        final int flags = buffer.getInt();
+
+        device.setOrder(buffer.getInt());
+        device.setTimestamp(buffer.getInt());
+        device.setMinInterval(buffer.getInt());
+        device.setPollInterval(buffer.getInt());
+        device.setDimLevel(buffer.getInt());
+
+        final int temperature = buffer.getInt();
+        final int humidity = buffer.getInt();
+        final int sunrise = buffer.getInt();
+        final int sunset = buffer.getInt();
+
+        device.setGUIDecimals(buffer.getInt());
+        device.setDeviceDecimals(buffer.getInt());
+
+        // the value setters mark their values as present
+        if ((flags & FLAG_HAS_TEMPERATURE) != 0) {
+            device.setTemperature(temperature);
+        }
+
+        if ((flags & FLAG_HAS_HUMIDITY) != 0) {
+            device.setHumidity(humidity);
+        }
+
+        if ((flags & FLAG_HAS_SUNRISE) != 0) {
+            device.setSunrise(sunrise);
+        }
+
+        if ((flags & FLAG_HAS_SUNSET) != 0) {
+            device.setSunset(sunset);
+        }
+
+        if ((flags & FLAG_HAS_BATTERY) != 0) {
+            device.setHealthyBattery((flags & FLAG_HEALTHY_BATTERY) != 0);
+        }
+
+        device.setAll((flags & FLAG_ALL) != 0);
+        device.setShowTemperature((flags & FLAG_SHOW_TEMPERATURE) != 0);
+        device.setShowHumidity((flags & FLAG_SHOW_HUMIDITY) != 0);
+        device.setShowBattery((flags & FLAG_SHOW_BATTERY) != 0);
+        device.setShowSunriseset((flags & FLAG_SHOW_SUNRISESET) != 0);
+        device.setShowUpdate((flags & FLAG_SHOW_UPDATE) != 0);
+        device.setReadOnly((flags & FLAG_READ_ONLY) != 0);
+
+        return device;
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        if (string == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        final byte[] bytes = string.getBytes("UTF-8");
+
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        final int length = buffer.getInt();
+
+        if (length < 0) {
+            return null;
+        }
+
+        if (length > buffer.remaining()) {
+            throw new IOException("string of " + length + " bytes exceeds the snapshot");
+        }
+
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+}
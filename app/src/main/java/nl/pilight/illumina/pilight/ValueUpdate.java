@@ -0,0 +1,167 @@
+/*
+ * illumina, a pilight remote
+ *
+ * Copyright (c) 2014 Peter Heisig <http://google.com/+PeterHeisig>
+ *
+ * illumina is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * illumina is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with illumina. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.pilight.illumina.pilight;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+
+/**
+ * The "values" of a pilight update, decoded once into a list of setter operations which
+ * are then applied to each device the update is meant for.
+ */
+class ValueUpdate {
+
+    public static final Logger log = LoggerFactory.getLogger(ValueUpdate.class);
+
+    private static final int OP_TIMESTAMP = 0;
+    private static final int OP_STATE = 1;
+    private static final int OP_DIMLEVEL = 2;
+    private static final int OP_TEMPERATURE = 3;
+    private static final int OP_HUMIDITY = 4;
+    private static final int OP_BATTERY = 5;
+
+    /** In the order of the OP_ constants */
+    private static final AttributeTable KEYS = new AttributeTable(
+            "timestamp", "state", "dimlevel", "temperature", "humidity", "battery");
+
+    /** Device.CHANGED_ bits in the order of the OP_ constants */
+    private static final int[] REPORTED = {
+            Device.CHANGED_TIMESTAMP, Device.CHANGED_VALUE, Device.CHANGED_DIMLEVEL,
+            Device.CHANGED_TEMPERATURE, Device.CHANGED_HUMIDITY, Device.CHANGED_BATTERY };
+
+    private final int[] mOps;
+    private final int[] mInts;
+    private final String[] mStrings;
+    private int mSize;
+
+    /** The timestamp the values were taken at, or -1 if pilight sent none */
+    private int mTimestamp = -1;
+
+    /** The Device.CHANGED_ bits of the values pilight sent */
+    private int mReported;
+
+    private ValueUpdate(int capacity) {
+        mOps = new int[capacity];
+        mInts = new int[capacity];
+        mStrings = new String[capacity];
+    }
+
+    static ValueUpdate compile(JSONObject jsonValues) {
+        final ValueUpdate update = new ValueUpdate(jsonValues.length());
+        final Iterator keys = jsonValues.keys();
+
+        while (keys.hasNext()) {
+            final String key = (String) keys.next();
+
+            try {
+                final int op = KEYS.indexOf(key);
+
+                switch (op) {
+                    case OP_TIMESTAMP:
+                        update.mTimestamp = jsonValues.optInt(key);
+                        update.add(op, update.mTimestamp, null);
+                        break;
+
+                    case OP_STATE:
+                        update.add(op, 0, jsonValues.getString(key));
+                        break;
+
+                    case OP_DIMLEVEL:
+                        update.add(op, jsonValues.getInt(key), null);
+                        break;
+
+                    case OP_TEMPERATURE:
+                    case OP_HUMIDITY:
+                    case OP_BATTERY:
+                        update.add(op, jsonValues.optInt(key), null);
+                        break;
+
+                    default:
+                        KEYS.logUnknown(log, "device value", key);
+                        break;
+                }
+
+            } catch (JSONException exception) {
+                log.warn("- value " + key + " ignored: " + exception.getMessage());
+            }
+        }
+
+        return update;
+    }
+
+    private void add(int op, int intValue, String stringValue) {
+        mReported |= REPORTED[op];
+        mOps[mSize] = op;
+        mInts[mSize] = intValue;
+        mStrings[mSize] = stringValue;
+        mSize++;
+    }
+
+    /**
+     * Returns the Device.CHANGED_ bits of the values this update sets, whether they
+     * differ from the device's or not.
+     */
+    int getReported() {
+        return mReported;
+    }
+
+    /**
+     * Returns whether the device already shows values taken after these. Updates of the
+     * same second are accepted in arrival order, pilight does not number its messages.
+     */
+    boolean isOlderThan(Device device) {
+        return mTimestamp >= 0 && mTimestamp < device.getTimestamp();
+    }
+
+    void apply(Device device) {
+        for (int i = 0; i < mSize; i++) {
+            switch (mOps[i]) {
+                case OP_TIMESTAMP:
+                    device.setTimestamp(mInts[i]);
+                    break;
+
+                case OP_STATE:
+                    device.setValue(mStrings[i]);
+                    break;
+
+                case OP_DIMLEVEL:
+                    device.setDimLevel(mInts[i]);
+                    break;
+
+                case OP_TEMPERATURE:
+                    device.setTemperature(mInts[i]);
+                    break;
+
+                case OP_HUMIDITY:
+                    device.setHumidity(mInts[i]);
+                    break;
+
+                case OP_BATTERY:
+                    device.setHealthyBattery(mInts[i] == 1);
+                    break;
+            }
+        }
+    }
+
+}
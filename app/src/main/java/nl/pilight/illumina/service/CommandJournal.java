@@ -0,0 +1,299 @@
+/*
+ * illumina, a pilight remote
+ *
+ * Copyright (c) 2014 Peter Heisig <http://google.com/+PeterHeisig>
+ *
+ * illumina is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * illumina is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with illumina. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.pilight.illumina.service;
+
+import android.os.Handler;
+import android.text.TextUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import nl.pilight.illumina.pilight.Device;
+
+/**
+ * Device changes requested while pilight is not reachable, replayed in order once the
+ * handshake completed. A command replaces an earlier one for the same device and property,
+ * only the latest {@link #MAX_COMMANDS} are kept and none older than {@link #MAX_AGE}.
+ *
+ * The journal is written to a file shortly after changes, so queued commands survive a
+ * restart of the service. Like the setting snapshot it belongs to one pilight endpoint.
+ *
+ * Must be used on the thread of the handler passed to the constructor.
+ */
+class CommandJournal {
+
+    public static final Logger log = LoggerFactory.getLogger(CommandJournal.class);
+
+    private static final int MAGIC = 0x504c434a; // "PLCJ"
+    private static final int VERSION = 1;
+
+    public static final int MAX_COMMANDS = 32;
+
+    /** Age after which a queued command no longer reflects the user's intent */
+    public static final long MAX_AGE = 10 * 60 * 1000;
+
+    /** Delay to collect queued commands before the journal is written */
+    public static final int WRITE_DELAY = 1000;
+
+    static class Command {
+
+        final String mLocationId;
+        final String mDeviceId;
+        final int mProperty;
+        final String mValue;
+        final int mDimLevel;
+        final long mQueuedAt;
+
+        Command(String locationId, String deviceId, int property, String value, int dimLevel,
+                long queuedAt) {
+            mLocationId = locationId;
+            mDeviceId = deviceId;
+            mProperty = property;
+            mValue = value;
+            mDimLevel = dimLevel;
+            mQueuedAt = queuedAt;
+        }
+
+        String getKey() {
+            return mLocationId + '/' + mDeviceId + '/' + mProperty;
+        }
+
+    }
+
+    private final File mFile;
+
+    private final Handler mHandler;
+
+    private String mHost;
+
+    private int mPort;
+
+    /** Whether commands were queued since the journal was written */
+    private boolean mIsDirty;
+
+    /** In order of arrival, superseded commands are moved to the end */
+    private final LinkedHashMap<String, Command> mCommands = new LinkedHashMap<>();
+
+    private final Runnable mWrite = new Runnable() {
+        @Override
+        public void run() {
+            write();
+        }
+    };
+
+    CommandJournal(File file, Handler handler) {
+        mFile = file;
+        mHandler = handler;
+        read();
+    }
+
+    boolean isEmpty() {
+        return mCommands.isEmpty();
+    }
+
+    /**
+     * Queues the change of the device for the given endpoint. Commands queued for
+     * another endpoint before are dropped.
+     */
+    void add(String host, int port, Device device, int property) {
+        add(host, port, device, property, System.currentTimeMillis());
+    }
+
+    void add(String host, int port, Device device, int property, long queuedAt) {
+        if (!isEndpoint(host, port)) {
+            mCommands.clear();
+            mHost = host;
+            mPort = port;
+        }
+
+        final Command command = new Command(device.getLocationId(), device.getId(), property,
+                device.getValue(), device.getDimLevel(), queuedAt);
+
+        mCommands.remove(command.getKey());
+        mCommands.put(command.getKey(), command);
+
+        if (mCommands.size() > MAX_COMMANDS) {
+            final Iterator<String> iterator = mCommands.keySet().iterator();
+            iterator.next();
+            iterator.remove();
+
+            log.warn("journal full, dropped the oldest command");
+        }
+
+        mIsDirty = true;
+        mHandler.removeCallbacks(mWrite);
+        mHandler.postDelayed(mWrite, WRITE_DELAY);
+    }
+
+    /**
+     * Empties the journal, returning the commands still valid for the given endpoint
+     * in the order they were queued.
+     */
+    List<Command> drain(String host, int port) {
+        return drain(host, port, System.currentTimeMillis());
+    }
+
+    List<Command> drain(String host, int port, long now) {
+        final List<Command> commands = new ArrayList<>(mCommands.size());
+
+        if (isEndpoint(host, port)) {
+            final long oldest = now - MAX_AGE;
+
+            for (Command command : mCommands.values()) {
+                if (command.mQueuedAt >= oldest) {
+                    commands.add(command);
+                }
+            }
+        }
+
+        if (commands.size() < mCommands.size()) {
+            log.info((mCommands.size() - commands.size()) + " outdated commands dropped");
+        }
+
+        mCommands.clear();
+        write();
+
+        return commands;
+    }
+
+    private boolean isEndpoint(String host, int port) {
+        return port == mPort && TextUtils.equals(host, mHost);
+    }
+
+    /**
+     * Writes pending changes right away, before the service stops.
+     */
+    void flush() {
+        if (mIsDirty) {
+            write();
+        }
+    }
+
+    private void write() {
+        mHandler.removeCallbacks(mWrite);
+        mIsDirty = false;
+
+        if (mCommands.isEmpty()) {
+            if (mFile.exists() && !mFile.delete()) {
+                log.warn("deleting " + mFile + " failed");
+            }
+            return;
+        }
+
+        final File tmpFile = new File(mFile.getPath() + ".tmp");
+
+        try {
+            final DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpFile)));
+
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(mHost != null ? mHost : "");
+                out.writeInt(mPort);
+                out.writeInt(mCommands.size());
+
+                for (Command command : mCommands.values()) {
+                    out.writeUTF(command.mLocationId);
+                    out.writeUTF(command.mDeviceId);
+                    out.writeInt(command.mProperty);
+                    out.writeBoolean(command.mValue != null);
+                    out.writeUTF(command.mValue != null ? command.mValue : "");
+                    out.writeInt(command.mDimLevel);
+                    out.writeLong(command.mQueuedAt);
+                }
+
+            } finally {
+                out.close();
+            }
+
+            if (!tmpFile.renameTo(mFile)) {
+                throw new IOException("renaming " + tmpFile + " failed");
+            }
+
+        } catch (IOException exception) {
+            log.warn("writing command journal failed", exception);
+        }
+    }
+
+    private void read() {
+        if (!mFile.isFile()) {
+            return;
+        }
+
+        try {
+            final DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(mFile)));
+
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    log.info("command journal has an unknown format, ignored");
+                    return;
+                }
+
+                mHost = in.readUTF();
+                mPort = in.readInt();
+
+                final int count = in.readInt();
+
+                for (int i = 0; i < count; i++) {
+                    final String locationId = in.readUTF();
+                    final String deviceId = in.readUTF();
+                    final int property = in.readInt();
+                    final boolean hasValue = in.readBoolean();
+                    final String value = in.readUTF();
+
+                    final Command command = new Command(locationId, deviceId, property,
+                            hasValue ? value : null, in.readInt(), in.readLong());
+
+                    mCommands.put(command.getKey(), command);
+                }
+
+                log.info(count + " queued commands restored");
+
+            } finally {
+                in.close();
+            }
+
+        } catch (EOFException exception) {
+            log.warn("command journal is truncated, ignored");
+            mCommands.clear();
+
+        } catch (IOException exception) {
+            log.warn("reading command journal failed", exception);
+            mCommands.clear();
+        }
+    }
+
+}
@@ -0,0 +1,178 @@
+/*
+ * illumina, a pilight remote
+ *
+ * Copyright (c) 2014 Peter Heisig <http://google.com/+PeterHeisig>
+ *
+ * illumina is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * illumina is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with illumina. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.pilight.illumina.service;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Round trip times of the commands sent for one device type, counted in fixed buckets,
+ * along with the number of commands pilight never confirmed or answered with another state.
+ */
+public class CommandLatencyHistogram implements Parcelable {
+
+    /** Upper bounds of the buckets in milliseconds, the last bucket takes all above */
+    private static final int[] BUCKET_BOUNDS = {
+            10, 20, 30, 50, 75, 100, 150, 200, 300, 500, 750, 1000, 1500, 2000, 3000, 5000
+    };
+
+    private final String mDeviceType;
+
+    private final int[] mCounts;
+
+    private int mCount;
+
+    private int mTimeouts;
+
+    private int mOverruled;
+
+    private int mThrottled;
+
+    public CommandLatencyHistogram(String deviceType) {
+        mDeviceType = deviceType;
+        mCounts = new int[BUCKET_BOUNDS.length + 1];
+    }
+
+    public CommandLatencyHistogram(CommandLatencyHistogram histogram) {
+        mDeviceType = histogram.mDeviceType;
+        mCounts = histogram.mCounts.clone();
+        mCount = histogram.mCount;
+        mTimeouts = histogram.mTimeouts;
+        mOverruled = histogram.mOverruled;
+        mThrottled = histogram.mThrottled;
+    }
+
+    public static final Parcelable.Creator<CommandLatencyHistogram> CREATOR
+            = new Parcelable.Creator<CommandLatencyHistogram>() {
+
+        public CommandLatencyHistogram createFromParcel(Parcel parcel) {
+            return new CommandLatencyHistogram(parcel);
+        }
+
+        public CommandLatencyHistogram[] newArray(int size) {
+            return new CommandLatencyHistogram[size];
+        }
+
+    };
+
+    public CommandLatencyHistogram(Parcel parcel) {
+        mDeviceType = parcel.readString();
+        mCounts = parcel.createIntArray();
+        mCount = parcel.readInt();
+        mTimeouts = parcel.readInt();
+        mOverruled = parcel.readInt();
+        mThrottled = parcel.readInt();
+    }
+
+    @Override
+    public void writeToParcel(Parcel parcel, int flags) {
+        parcel.writeString(mDeviceType);
+        parcel.writeIntArray(mCounts);
+        parcel.writeInt(mCount);
+        parcel.writeInt(mTimeouts);
+        parcel.writeInt(mOverruled);
+        parcel.writeInt(mThrottled);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    void add(long latency) {
+        int bucket = 0;
+
+        while (bucket < BUCKET_BOUNDS.length && latency > BUCKET_BOUNDS[bucket]) {
+            bucket++;
+        }
+
+        mCounts[bucket]++;
+        mCount++;
+    }
+
+    void addTimeout() {
+        mTimeouts++;
+    }
+
+    void addOverruled() {
+        mOverruled++;
+    }
+
+    void addThrottled() {
+        mThrottled++;
+    }
+
+    public String getDeviceType() {
+        return mDeviceType;
+    }
+
+    /** Number of confirmed commands */
+    public int getCount() {
+        return mCount;
+    }
+
+    /** Number of commands pilight did not confirm in time */
+    public int getTimeouts() {
+        return mTimeouts;
+    }
+
+    /** Number of commands pilight answered with another state */
+    public int getOverruled() {
+        return mOverruled;
+    }
+
+    /** Number of commands held back to honor the min-interval of their device */
+    public int getThrottled() {
+        return mThrottled;
+    }
+
+    /**
+     * Returns the upper bound in milliseconds of the bucket holding the given percentile,
+     * {@link Integer#MAX_VALUE} if it lies above the largest bound and -1 without any samples.
+     */
+    public int getPercentile(int percentile) {
+        if (mCount == 0) {
+            return -1;
+        }
+
+        final int rank = (int) Math.ceil(mCount * percentile / 100.0);
+        int sum = 0;
+
+        for (int bucket = 0; bucket < BUCKET_BOUNDS.length; bucket++) {
+            sum += mCounts[bucket];
+
+            if (sum >= rank) {
+                return BUCKET_BOUNDS[bucket];
+            }
+        }
+
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public String toString() {
+        return mDeviceType + ": " + mCount + " confirmed, " + mTimeouts + " timed out, "
+                + mOverruled + " overruled, " + mThrottled + " throttled"
+                + ", P50 " + getPercentile(50) + "ms"
+                + ", P95 " + getPercentile(95) + "ms"
+                + ", P99 " + getPercentile(99) + "ms";
+    }
+
+}
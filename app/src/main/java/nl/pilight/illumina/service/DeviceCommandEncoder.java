@@ -0,0 +1,149 @@
+/*
+ * illumina, a pilight remote
+ *
+ * Copyright (c) 2014 Peter Heisig <http://google.com/+PeterHeisig>
+ *
+ * illumina is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * illumina is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with illumina. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.pilight.illumina.service;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import nl.pilight.illumina.pilight.Device;
+
+/**
+ * Writes pilight "send" messages for device changes. The constant part of a message up to
+ * the device id is built once per device, only the value is escaped per command. The
+ * builder is reused, so encoding a command allocates little more than the resulting string.
+ *
+ * Not thread safe, the service only uses it on the protocol thread.
+ */
+class DeviceCommandEncoder {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /** Message prefixes by location and device id */
+    private final Map<String, Map<String, String>> mPrefixes = new HashMap<>();
+
+    private final StringBuilder mBuilder = new StringBuilder(128);
+
+    String encode(Device device, int changedProperty) {
+        final StringBuilder builder = mBuilder;
+        builder.setLength(0);
+        builder.append(getPrefix(device.getLocationId(), device.getId()));
+
+        // like JSONObject.put(), a missing state leaves out the key
+        if (changedProperty == Device.Properties.VALUE.ordinal() && device.getValue() != null) {
+            builder.append(",\"state\":");
+            appendString(builder, device.getValue());
+        }
+
+        final boolean isDimLevel = changedProperty == Device.Properties.DIMLEVEL.ordinal();
+        final boolean isUpdate = changedProperty == Device.Properties.UPDATE.ordinal();
+
+        if (isDimLevel || isUpdate || device.getAll()) {
+            char separator = '{';
+            builder.append(",\"values\":");
+
+            if (isDimLevel) {
+                builder.append(separator).append("\"dimlevel\":").append(device.getDimLevel());
+                separator = ',';
+            }
+
+            if (device.getAll()) {
+                builder.append(separator).append("\"all\":1");
+                separator = ',';
+            }
+
+            if (isUpdate) {
+                builder.append(separator).append("\"update\":1");
+            }
+
+            builder.append('}');
+        }
+
+        return builder.append("}}").toString();
+    }
+
+    private String getPrefix(String locationId, String deviceId) {
+        Map<String, String> devices = mPrefixes.get(locationId);
+
+        if (devices == null) {
+            devices = new HashMap<>();
+            mPrefixes.put(locationId, devices);
+        }
+
+        String prefix = devices.get(deviceId);
+
+        if (prefix == null) {
+            final StringBuilder builder = new StringBuilder("{\"message\":\"send\",\"code\":{\"location\":");
+            appendString(builder, locationId);
+            builder.append(",\"device\":");
+            appendString(builder, deviceId);
+
+            prefix = builder.toString();
+            devices.put(deviceId, prefix);
+        }
+
+        return prefix;
+    }
+
+    private static void appendString(StringBuilder builder, String string) {
+        if (string == null) {
+            builder.append("null");
+            return;
+        }
+
+        builder.append('"');
+
+        for (int i = 0; i < string.length(); i++) {
+            final char c = string.charAt(i);
+
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    builder.append('\\').append(c);
+                    break;
+
+                case '\n':
+                    builder.append("\\n");
+                    break;
+
+                case '\r':
+                    builder.append("\\r");
+                    break;
+
+                case '\t':
+                    builder.append("\\t");
+                    break;
+
+                default:
+                    if (c < 0x20) {
+                        builder.append("\\u00")
+                                .append(HEX_DIGITS[c >> 4])
+                                .append(HEX_DIGITS[c & 0xf]);
+                    } else {
+                        builder.append(c);
+                    }
+                    break;
+            }
+        }
+
+        builder.append('"');
+    }
+
+}
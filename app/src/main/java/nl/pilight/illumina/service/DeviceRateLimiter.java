@@ -0,0 +1,200 @@
+/*
+ * illumina, a pilight remote
+ *
+ * Copyright (c) 2014 Peter Heisig <http://google.com/+PeterHeisig>
+ *
+ * illumina is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * illumina is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with illumina. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.pilight.illumina.service;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import nl.pilight.illumina.pilight.Device;
+
+/**
+ * Token bucket per device holding a single token, refilled after the device's min-interval.
+ * Commands arriving while the bucket is empty are queued, a newer command for the same
+ * property replaces the queued one. A queued update request is dropped if the device's
+ * regular poll (see its poll-interval) delivers fresh values before the token is back.
+ *
+ * Must be used on the thread of the handler passed to the constructor.
+ */
+class DeviceRateLimiter {
+
+    public static final Logger log = LoggerFactory.getLogger(DeviceRateLimiter.class);
+
+    /** Returned by {@link #schedule} if the command does not need to be sent */
+    public static final long DROPPED = -1;
+
+    interface Sender {
+
+        void onSendDeferred(Device device, int property);
+
+    }
+
+    private class Bucket implements Runnable {
+
+        final long mInterval;
+
+        long mNextTokenAt;
+
+        /** Deferred commands by property, in order of arrival */
+        final LinkedHashMap<Integer, Device> mQueued = new LinkedHashMap<>();
+
+        Bucket(long interval) {
+            mInterval = interval;
+        }
+
+        /** Returns when the command at the given position of the queue is sent */
+        long getSendTime(int position) {
+            return Math.max(SystemClock.uptimeMillis(), mNextTokenAt) + position * mInterval;
+        }
+
+        @Override
+        public void run() {
+            final Iterator<Map.Entry<Integer, Device>> iterator = mQueued.entrySet().iterator();
+
+            if (!iterator.hasNext()) {
+                return;
+            }
+
+            final Map.Entry<Integer, Device> command = iterator.next();
+            iterator.remove();
+
+            mNextTokenAt = SystemClock.uptimeMillis() + mInterval;
+            mSender.onSendDeferred(command.getValue(), command.getKey());
+
+            if (!mQueued.isEmpty()) {
+                mHandler.postAtTime(this, mNextTokenAt);
+            }
+        }
+
+    }
+
+    private final Handler mHandler;
+
+    private final Sender mSender;
+
+    private final Map<String, Bucket> mBuckets = new HashMap<>();
+
+    private int mDeferredCount;
+
+    private int mMergedCount;
+
+    private int mCoveredByPollCount;
+
+    DeviceRateLimiter(Handler handler, Sender sender) {
+        mHandler = handler;
+        mSender = sender;
+    }
+
+    /**
+     * Takes a token for the command if one is available and returns 0, the command is to
+     * be sent right away then. Otherwise the command is queued and the delay in milliseconds
+     * until it is sent is returned, or {@link #DROPPED}.
+     *
+     * @param current the device as known by the service, providing the intervals
+     */
+    long schedule(Device current, Device command, int property) {
+        final long interval = current.getMinInterval() * 1000L;
+
+        if (interval <= 0) {
+            return 0;
+        }
+
+        final String key = current.getLocationId() + '/' + current.getId();
+        final long now = SystemClock.uptimeMillis();
+        Bucket bucket = mBuckets.get(key);
+
+        if (bucket == null || bucket.mInterval != interval) {
+            final Bucket previous = bucket;
+            bucket = new Bucket(interval);
+            mBuckets.put(key, bucket);
+
+            if (previous != null) {
+                // the queued commands are still to be sent, now at the new pace
+                mHandler.removeCallbacks(previous);
+                bucket.mNextTokenAt = previous.mNextTokenAt;
+                bucket.mQueued.putAll(previous.mQueued);
+
+                if (!bucket.mQueued.isEmpty()) {
+                    mHandler.postAtTime(bucket, bucket.mNextTokenAt);
+                }
+            }
+        }
+
+        if (bucket.mQueued.isEmpty() && now >= bucket.mNextTokenAt) {
+            bucket.mNextTokenAt = now + interval;
+            return 0;
+        }
+
+        int position = 0;
+
+        for (Integer queuedProperty : bucket.mQueued.keySet()) {
+            if (queuedProperty == property) {
+                break;
+            }
+            position++;
+        }
+
+        final long delay = bucket.getSendTime(position) - now;
+
+        if (property == Device.Properties.UPDATE.ordinal() && isCoveredByPoll(current, delay)) {
+            mCoveredByPollCount++;
+            log.info("update of " + current.getId() + " dropped, the next poll is due earlier"
+                    + " (" + mCoveredByPollCount + " so far)");
+            return DROPPED;
+        }
+
+        if (bucket.mQueued.put(property, command) != null) {
+            mMergedCount++;
+            log.info("command for " + current.getId() + " merged into the queued one"
+                    + " (" + mMergedCount + " so far)");
+
+        } else {
+            mDeferredCount++;
+            log.info("command for " + current.getId() + " deferred by " + delay + "ms"
+                    + " (" + mDeferredCount + " so far)");
+
+            if (position == 0) {
+                mHandler.postAtTime(bucket, bucket.mNextTokenAt);
+            }
+        }
+
+        return delay;
+    }
+
+    private static boolean isCoveredByPoll(Device device, long delay) {
+        if (device.getPollInterval() <= 0 || device.getTimestamp() <= 0) {
+            return false;
+        }
+
+        final long nextPoll = (device.getTimestamp() + device.getPollInterval()) * 1000L;
+        final long now = System.currentTimeMillis();
+
+        // an overdue poll means the device is stale, the update is needed then
+        return now <= nextPoll && nextPoll <= now + delay;
+    }
+
+}
@@ -0,0 +1,676 @@
+/*
+ * illumina, a pilight remote
+ *
+ * Copyright (c) 2014 Peter Heisig <http://google.com/+PeterHeisig>
+ *
+ * illumina is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * illumina is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with illumina. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package nl.pilight.illumina.service;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sensor readings kept on disk across restarts. Readings are collected in a batch and
+ * written once a second on a thread of its own, so appending never blocks the caller.
+ *
+ * The log is split into tiers of memory-mapped {@link HistorySegment}s. Raw samples are
+ * rolled into aggregates of a minute, minutes into hours and hours into days, each time a
+ * tier holds more closed segments than it keeps. The day tier drops its oldest segments.
+ * Days start at local midnight, shorter buckets at whole minutes and hours of UTC. A bucket
+ * may be split into two aggregates where segments end, readers merge them.
+ *
+ * A segment is rolled into a single segment of the next tier, committed along with the
+ * sequence of the source. The source is deleted afterwards, a source left behind by a
+ * crash in between is recognized by its sequence and not rolled in again.
+ *
+ * Series, a sensor of a device, are stored by their index in a separate, append-only file.
+ * New series are flushed before records referring to them are committed, records of series
+ * lost nevertheless are skipped by the cursor.
+ */
+class HistoryLog {
+
+    public static final Logger log = LoggerFactory.getLogger(HistoryLog.class);
+
+    static final int TIER_RAW = 0;
+    static final int TIER_MINUTE = 1;
+    static final int TIER_HOUR = 2;
+    static final int TIER_DAY = 3;
+
+    private static final String[] TIER_NAMES = { "raw", "minute", "hour", "day" };
+
+    /** Length of the buckets of the tiers up to hours, days are cut at local midnight */
+    private static final long[] BUCKET_LENGTHS = { 0, 60 * 1000L, 60 * 60 * 1000L };
+
+    /** Closed segments a tier keeps before the oldest is rolled into the next tier */
+    private static final int[] MAX_FULL_SEGMENTS = { 4, 4, 4, 8 };
+
+    /** Records per segment, 64 KB for raw samples and 128 KB for aggregates */
+    private static final int SEGMENT_CAPACITY = 4096;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final String SERIES_FILE_NAME = "series";
+
+    private static final int BATCH_CAPACITY = 512;
+
+    private static final int BATCH_DELAY = 1000;
+
+    /**
+     * Called on the history thread with a cursor which is only valid during the call.
+     */
+    interface RangeCallback {
+
+        void onRange(Cursor cursor);
+
+    }
+
+    /**
+     * Iterates the records of a time range straight from the mapped segments, without
+     * copying them. Raw records have a count of one and their value as min, max and sum.
+     */
+    class Cursor {
+
+        private final List<HistorySegment> mSegments;
+        private final long mFrom;
+        private final long mTo;
+
+        private int mSegmentIndex;
+        private int mIndex = -1;
+        private HistorySegment mSegment;
+
+        Cursor(List<HistorySegment> segments, long from, long to) {
+            mSegments = segments;
+            mFrom = from;
+            mTo = to;
+            mSegment = segments.isEmpty() ? null : segments.get(0);
+        }
+
+        /**
+         * Moves to the next record within the range, returns false after the last one.
+         */
+        boolean next() {
+            while (mSegment != null) {
+                mIndex++;
+
+                if (mIndex >= mSegment.size()) {
+                    mSegmentIndex++;
+                    mSegment = mSegmentIndex < mSegments.size()
+                            ? mSegments.get(mSegmentIndex) : null;
+                    mIndex = -1;
+                    continue;
+                }
+
+                final long timestamp = mSegment.getTimestamp(mIndex);
+                final int series = mSegment.getSeries(mIndex);
+
+                if (timestamp >= mFrom && timestamp < mTo
+                        && series >= 0 && series < mSeries.size()) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        /** Time of the sample or start of the bucket, milliseconds since the epoch */
+        long getTimestamp() {
+            return mSegment.getTimestamp(mIndex);
+        }
+
+        /** Index of the series, stable for the lifetime of the log */
+        int getSeries() {
+            return mSegment.getSeries(mIndex);
+        }
+
+        String getLocationId() {
+            return mSeries.get(mSegment.getSeries(mIndex))[0];
+        }
+
+        String getDeviceId() {
+            return mSeries.get(mSegment.getSeries(mIndex))[1];
+        }
+
+        int getSensor() {
+            return Integer.parseInt(mSeries.get(mSegment.getSeries(mIndex))[2]);
+        }
+
+        int getCount() {
+            return mSegment.getCount(mIndex);
+        }
+
+        int getMin() {
+            return mSegment.getMin(mIndex);
+        }
+
+        int getMax() {
+            return mSegment.getMax(mIndex);
+        }
+
+        long getSum() {
+            return mSegment.getSum(mIndex);
+        }
+
+    }
+
+    /** Readings appended but not yet written */
+    private static class Batch {
+
+        final String[] mLocationIds = new String[BATCH_CAPACITY];
+        final String[] mDeviceIds = new String[BATCH_CAPACITY];
+        final int[] mSensors = new int[BATCH_CAPACITY];
+        final long[] mTimestamps = new long[BATCH_CAPACITY];
+        final int[] mValues = new int[BATCH_CAPACITY];
+        int mSize;
+
+        void clear() {
+            for (int i = 0; i < mSize; i++) {
+                mLocationIds[i] = null;
+                mDeviceIds[i] = null;
+            }
+
+            mSize = 0;
+        }
+
+    }
+
+    private final File mDirectory;
+
+    private final HandlerThread mThread = new HandlerThread("PILIGHT HISTORY");
+
+    private Handler mHandler;
+
+    private final Object mBatchLock = new Object();
+
+    // guarded by mBatchLock
+    private Batch mBatch = new Batch();
+    private Batch mSpareBatch = new Batch();
+    private boolean mIsFlushPosted;
+    private int mDroppedCount;
+
+    // only used on the history thread
+    private final List<List<HistorySegment>> mTiers = new ArrayList<>();
+    private final int[] mNextSequences = new int[TIER_NAMES.length];
+    /** Sequence of the last segment rolled into the tier, by tier */
+    private final int[] mRolledSequences = new int[TIER_NAMES.length];
+    /** Last time mapped to a day bucket and the bucket's start, by getBucketStart() */
+    private long mLastDayTimestamp = Long.MIN_VALUE;
+    private long mLastDayStart;
+    private final List<String[]> mSeries = new ArrayList<>();
+    private final Map<String, Integer> mSeriesIds = new HashMap<>();
+    private DataOutputStream mSeriesOut;
+    private boolean mIsOpen;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            final Batch batch;
+            final int droppedCount;
+
+            synchronized (mBatchLock) {
+                batch = mBatch;
+                mBatch = mSpareBatch;
+                mSpareBatch = batch;
+                mIsFlushPosted = false;
+                droppedCount = mDroppedCount;
+                mDroppedCount = 0;
+            }
+
+            if (droppedCount > 0) {
+                log.warn(droppedCount + " readings dropped, batch was full");
+            }
+
+            write(batch);
+            batch.clear();
+        }
+    };
+
+    HistoryLog(File directory) {
+        mDirectory = directory;
+
+        for (int tier = 0; tier < TIER_NAMES.length; tier++) {
+            mTiers.add(new ArrayList<HistorySegment>());
+        }
+    }
+
+    /**
+     * Starts the history thread and opens the log on it.
+     */
+    void start() {
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                open();
+            }
+        });
+    }
+
+    /**
+     * Writes the pending readings and stops the history thread.
+     */
+    void stop() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mHandler.removeCallbacks(mFlush);
+                mFlush.run();
+                closeSeries();
+                mIsOpen = false;
+                Looper.myLooper().quit();
+            }
+        });
+    }
+
+    /**
+     * Queues a reading for writing, may be called on any thread.
+     */
+    void append(String locationId, String deviceId, int sensor, long timestamp, int value) {
+        synchronized (mBatchLock) {
+            final Batch batch = mBatch;
+
+            if (batch.mSize == BATCH_CAPACITY) {
+                mDroppedCount++;
+                return;
+            }
+
+            final int index = batch.mSize++;
+
+            batch.mLocationIds[index] = locationId;
+            batch.mDeviceIds[index] = deviceId;
+            batch.mSensors[index] = sensor;
+            batch.mTimestamps[index] = timestamp;
+            batch.mValues[index] = value;
+
+            if (!mIsFlushPosted) {
+                mIsFlushPosted = true;
+                mHandler.postDelayed(mFlush, BATCH_DELAY);
+            }
+        }
+    }
+
+    /**
+     * Passes a cursor over the records of the tier from (inclusive) to (exclusive) to the
+     * callback, on the history thread.
+     */
+    void query(final int tier, final long from, final long to, final RangeCallback callback) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final List<HistorySegment> segments = mIsOpen
+                        ? mTiers.get(tier) : Collections.<HistorySegment>emptyList();
+
+                callback.onRange(new Cursor(segments, from, to));
+            }
+        });
+    }
+
+    private void open() {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            log.warn("creating " + mDirectory + " failed, history not kept");
+            return;
+        }
+
+        try {
+            readSeries();
+            openSegments();
+            mIsOpen = true;
+
+            log.info("history opened, " + mSeries.size() + " series");
+
+        } catch (IOException exception) {
+            log.warn("opening history failed, history not kept", exception);
+        }
+    }
+
+    private void readSeries() throws IOException {
+        final File file = new File(mDirectory, SERIES_FILE_NAME);
+
+        if (file.isFile()) {
+            final DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
+
+            try {
+                while (true) {
+                    final String locationId = in.readUTF();
+                    final String deviceId = in.readUTF();
+                    final int sensor = in.readByte();
+
+                    addSeries(locationId, deviceId, sensor);
+                }
+            } catch (EOFException exception) {
+                // end of file, or a series torn by a crash which is dropped below
+            } finally {
+                in.close();
+            }
+        }
+
+        // rewritten so an incomplete last series does not garble the ones appended later,
+        // into a temporary file first so a crash never loses the complete ones
+        final File tmpFile = new File(mDirectory, SERIES_FILE_NAME + ".tmp");
+
+        mSeriesOut = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile)));
+
+        try {
+            for (String[] series : mSeries) {
+                writeSeries(series);
+            }
+        } finally {
+            closeSeries();
+        }
+
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("renaming " + tmpFile + " failed");
+        }
+
+        mSeriesOut = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+
+    private int addSeries(String locationId, String deviceId, int sensor) {
+        final int id = mSeries.size();
+
+        mSeries.add(new String[] { locationId, deviceId, String.valueOf(sensor) });
+        mSeriesIds.put(getSeriesKey(locationId, deviceId, sensor), id);
+        return id;
+    }
+
+    private void writeSeries(String[] series) throws IOException {
+        mSeriesOut.writeUTF(series[0]);
+        mSeriesOut.writeUTF(series[1]);
+        mSeriesOut.writeByte(Integer.parseInt(series[2]));
+    }
+
+    private static String getSeriesKey(String locationId, String deviceId, int sensor) {
+        return locationId + '/' + deviceId + '/' + sensor;
+    }
+
+    private int getSeriesId(String locationId, String deviceId, int sensor) throws IOException {
+        final Integer id = mSeriesIds.get(getSeriesKey(locationId, deviceId, sensor));
+
+        if (id != null) {
+            return id;
+        }
+
+        final int newId = addSeries(locationId, deviceId, sensor);
+        writeSeries(mSeries.get(newId));
+        return newId;
+    }
+
+    private void closeSeries() {
+        if (mSeriesOut == null) {
+            return;
+        }
+
+        try {
+            mSeriesOut.close();
+        } catch (IOException exception) {
+            log.warn("closing series failed", exception);
+        }
+
+        mSeriesOut = null;
+    }
+
+    private void openSegments() throws IOException {
+        final File[] files = mDirectory.listFiles();
+
+        if (files == null) {
+            throw new IOException("listing " + mDirectory + " failed");
+        }
+
+        for (int tier = 0; tier < TIER_NAMES.length; tier++) {
+            final List<HistorySegment> segments = mTiers.get(tier);
+            final String prefix = TIER_NAMES[tier] + "-";
+
+            mRolledSequences[tier] = -1;
+
+            for (File file : files) {
+                final String name = file.getName();
+
+                if (!name.startsWith(prefix) || !name.endsWith(SEGMENT_SUFFIX)) {
+                    continue;
+                }
+
+                final HistorySegment segment = HistorySegment.open(file, tier);
+
+                if (segment == null) {
+                    log.info("unknown segment " + name + " deleted");
+                    delete(file);
+                    continue;
+                }
+
+                segments.add(segment);
+                mNextSequences[tier] = Math.max(mNextSequences[tier], getSequence(file) + 1);
+                mRolledSequences[tier] = Math.max(mRolledSequences[tier], segment.getRolled());
+            }
+
+            Collections.sort(segments, new Comparator<HistorySegment>() {
+                @Override
+                public int compare(HistorySegment lhs, HistorySegment rhs) {
+                    final int lhsSequence = getSequence(lhs.getFile());
+                    final int rhsSequence = getSequence(rhs.getFile());
+
+                    return lhsSequence < rhsSequence ? -1 : (lhsSequence == rhsSequence ? 0 : 1);
+                }
+            });
+        }
+
+        // sources left behind by a crash after their roll would be read twice
+        for (int tier = 0; tier + 1 < TIER_NAMES.length; tier++) {
+            final List<HistorySegment> segments = mTiers.get(tier);
+
+            while (!segments.isEmpty() && getSequence(segments.get(0).getFile())
+                    <= mRolledSequences[tier + 1]) {
+                log.info(TIER_NAMES[tier] + " segment " + getSequence(segments.get(0).getFile())
+                        + " was rolled up before, deleted");
+                delete(segments.remove(0).getFile());
+            }
+        }
+    }
+
+    private static int getSequence(File file) {
+        final String name = file.getName();
+
+        try {
+            return Integer.parseInt(name.substring(
+                    name.indexOf('-') + 1, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException exception) {
+            return -1;
+        }
+    }
+
+    private static void delete(File file) {
+        if (!file.delete()) {
+            log.warn("deleting " + file + " failed");
+        }
+    }
+
+    /**
+     * Returns the last segment of the tier, or a new one if that cannot take the given
+     * number of records. The last segment is closed then, even if not full.
+     */
+    private HistorySegment getWritableSegment(int tier, int recordCount) throws IOException {
+        final List<HistorySegment> segments = mTiers.get(tier);
+
+        if (!segments.isEmpty()
+                && segments.get(segments.size() - 1).getRemaining() >= recordCount) {
+            return segments.get(segments.size() - 1);
+        }
+
+        final File file = new File(mDirectory,
+                TIER_NAMES[tier] + "-" + mNextSequences[tier]++ + SEGMENT_SUFFIX);
+        final HistorySegment segment = HistorySegment.create(file, tier, SEGMENT_CAPACITY);
+
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Publishes the records of the segment, after the series they refer to.
+     */
+    private void commit(HistorySegment segment) throws IOException {
+        mSeriesOut.flush();
+        segment.commit();
+    }
+
+    private void write(Batch batch) {
+        if (!mIsOpen || batch.mSize == 0) {
+            return;
+        }
+
+        final long startedAt = System.nanoTime();
+
+        try {
+            HistorySegment segment = getWritableSegment(TIER_RAW, 1);
+
+            for (int i = 0; i < batch.mSize; i++) {
+                if (segment.isFull()) {
+                    commit(segment);
+                    segment.force();
+                    segment = getWritableSegment(TIER_RAW, 1);
+                }
+
+                segment.appendSample(batch.mTimestamps[i], getSeriesId(
+                        batch.mLocationIds[i], batch.mDeviceIds[i], batch.mSensors[i]),
+                        batch.mValues[i]);
+            }
+
+            commit(segment);
+            compact();
+
+        } catch (IOException exception) {
+            log.warn("writing history failed", exception);
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug(batch.mSize + " readings written in "
+                    + (System.nanoTime() - startedAt) / 1000 + "us");
+        }
+    }
+
+    /**
+     * Rolls the oldest closed segments of each tier into the next one, all but the last
+     * segment of a tier are closed.
+     */
+    private void compact() throws IOException {
+        for (int tier = 0; tier < TIER_NAMES.length; tier++) {
+            final List<HistorySegment> segments = mTiers.get(tier);
+
+            while (segments.size() - 1 > MAX_FULL_SEGMENTS[tier]) {
+                final HistorySegment oldest = segments.remove(0);
+                final int sequence = getSequence(oldest.getFile());
+
+                if (tier + 1 >= TIER_NAMES.length) {
+                    log.info("oldest " + TIER_NAMES[tier] + " segment dropped");
+                } else if (sequence <= mRolledSequences[tier + 1]) {
+                    log.info(TIER_NAMES[tier] + " segment " + sequence
+                            + " was rolled up before, deleted");
+                } else {
+                    rollInto(oldest, sequence, tier + 1);
+                }
+
+                delete(oldest.getFile());
+            }
+        }
+    }
+
+    /**
+     * Returns the start of the bucket of the tier holding the given time. Days start at
+     * local midnight like the day statistics, so a day bucket never spans two of their days.
+     */
+    private long getBucketStart(int tier, long timestamp) {
+        if (tier != TIER_DAY) {
+            return timestamp / BUCKET_LENGTHS[tier] * BUCKET_LENGTHS[tier];
+        }
+
+        // the hour aggregates rolled into days share few distinct timestamps
+        if (timestamp != mLastDayTimestamp) {
+            mLastDayTimestamp = timestamp;
+            mLastDayStart = SensorStatistics.getWindowStart(SensorStatistics.WINDOW_DAY, timestamp);
+        }
+
+        return mLastDayStart;
+    }
+
+    private void rollInto(HistorySegment segment, int sequence, int tier) throws IOException {
+        final int size = segment.size();
+
+        // count, min, max, sum and bucket start by series and the bucket's starting minute,
+        // in order of appearance
+        final Map<Long, long[]> aggregates = new LinkedHashMap<>();
+
+        for (int i = 0; i < size; i++) {
+            final long bucketStart = getBucketStart(tier, segment.getTimestamp(i));
+            final long key = ((long) segment.getSeries(i) << 32)
+                    | ((bucketStart / BUCKET_LENGTHS[TIER_MINUTE]) & 0xffffffffL);
+            final long[] aggregate = aggregates.get(key);
+
+            if (aggregate == null) {
+                aggregates.put(key, new long[] { segment.getCount(i), segment.getMin(i),
+                        segment.getMax(i), segment.getSum(i), bucketStart });
+            } else {
+                aggregate[0] += segment.getCount(i);
+                aggregate[1] = Math.min(aggregate[1], segment.getMin(i));
+                aggregate[2] = Math.max(aggregate[2], segment.getMax(i));
+                aggregate[3] += segment.getSum(i);
+            }
+        }
+
+        // a segment never holds more buckets than records, so they fit into a fresh target
+        final HistorySegment target = getWritableSegment(tier, aggregates.size());
+
+        for (Map.Entry<Long, long[]> entry : aggregates.entrySet()) {
+            final long[] aggregate = entry.getValue();
+
+            target.appendAggregate(aggregate[4], (int) (entry.getKey() >>> 32),
+                    (int) aggregate[0], (int) aggregate[1], (int) aggregate[2], aggregate[3]);
+        }
+
+        // the aggregates and the rolled sequence are published at once
+        target.setRolled(sequence);
+        target.commit();
+        target.force();
+        mRolledSequences[tier] = sequence;
+
+        log.info("rolled " + size + " " + TIER_NAMES[tier - 1] + " records into "
+                + aggregates.size() + " " + TIER_NAMES[tier] + " aggregates");
+    }
+
+}
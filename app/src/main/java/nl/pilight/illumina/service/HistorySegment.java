@@ -0,0 +1,228 @@
+/*
+ * illumina, a pilight remote
+ *
+ * Copyright (c) 2014 Peter Heisig <http://google.com/+PeterHeisig>
+ *
+ * illumina is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * illumina is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with illumina. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package nl.pilight.illumina.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * One memory-mapped file of the {@link HistoryLog}, holding a fixed number of fixed-size
+ * records. Raw records are a sample, aggregated records sum up the samples of a time bucket.
+ * The record count in the header is written after the records, so a crash while appending
+ * loses the records of the last batch but never leaves a broken segment behind. Along with
+ * the count the header holds the sequence of the last segment of the previous tier rolled
+ * into this one, see {@link #setRolled(int)}.
+ *
+ * Must be used on the history thread.
+ */
+class HistorySegment {
+
+    private static final int MAGIC = 0x504c4853; // "PLHS"
+
+    private static final int HEADER_SIZE = 16;
+    private static final int HEADER_TIER = 4;
+    private static final int HEADER_COUNT = 8;
+    private static final int HEADER_ROLLED = 12;
+
+    static final int RAW_RECORD_SIZE = 16;
+    static final int AGGREGATE_RECORD_SIZE = 32;
+
+    // offsets within a record, values of raw records are stored at the min offset
+    private static final int TIMESTAMP = 0;
+    private static final int SERIES = 8;
+    private static final int MIN = 12;
+    private static final int COUNT = 16;
+    private static final int MAX = 20;
+    private static final int SUM = 24;
+
+    private final File mFile;
+
+    private final boolean mIsRaw;
+
+    private final int mRecordSize;
+
+    private final int mCapacity;
+
+    private final MappedByteBuffer mBuffer;
+
+    private int mCount;
+
+    private int mRolled = -1;
+
+    private HistorySegment(File file, boolean isRaw, int capacity, MappedByteBuffer buffer) {
+        mFile = file;
+        mIsRaw = isRaw;
+        mRecordSize = isRaw ? RAW_RECORD_SIZE : AGGREGATE_RECORD_SIZE;
+        mCapacity = capacity;
+        mBuffer = buffer;
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+
+        try {
+            if (randomAccessFile.length() != size) {
+                randomAccessFile.setLength(size);
+            }
+
+            // the mapping stays valid after the file is closed
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    static HistorySegment create(File file, int tier, int capacity) throws IOException {
+        final boolean isRaw = tier == HistoryLog.TIER_RAW;
+        final int recordSize = isRaw ? RAW_RECORD_SIZE : AGGREGATE_RECORD_SIZE;
+        final MappedByteBuffer buffer = map(file, HEADER_SIZE + (long) capacity * recordSize);
+
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(HEADER_TIER, tier);
+        buffer.putInt(HEADER_COUNT, 0);
+        buffer.putInt(HEADER_ROLLED, -1);
+
+        return new HistorySegment(file, isRaw, capacity, buffer);
+    }
+
+    /**
+     * Maps an existing segment of the tier, or returns null if the file is no such segment.
+     */
+    static HistorySegment open(File file, int tier) throws IOException {
+        final boolean isRaw = tier == HistoryLog.TIER_RAW;
+        final int recordSize = isRaw ? RAW_RECORD_SIZE : AGGREGATE_RECORD_SIZE;
+        final long length = file.length();
+
+        if (length < HEADER_SIZE || (length - HEADER_SIZE) % recordSize != 0) {
+            return null;
+        }
+
+        final MappedByteBuffer buffer = map(file, length);
+        final int capacity = (int) ((length - HEADER_SIZE) / recordSize);
+
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(HEADER_TIER) != tier) {
+            return null;
+        }
+
+        final HistorySegment segment = new HistorySegment(file, isRaw, capacity, buffer);
+        segment.mCount = Math.max(0, Math.min(buffer.getInt(HEADER_COUNT), capacity));
+        segment.mRolled = buffer.getInt(HEADER_ROLLED);
+        return segment;
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    int size() {
+        return mCount;
+    }
+
+    boolean isFull() {
+        return mCount == mCapacity;
+    }
+
+    /** Number of records which can still be appended */
+    int getRemaining() {
+        return mCapacity - mCount;
+    }
+
+    /**
+     * Returns the sequence of the last segment rolled into this one, -1 if there is none.
+     */
+    int getRolled() {
+        return mRolled;
+    }
+
+    /**
+     * Marks the segment of the given sequence as rolled into this one, published by the
+     * next {@link #commit()} together with its aggregates.
+     */
+    void setRolled(int sequence) {
+        mRolled = sequence;
+    }
+
+    private int offset(int index) {
+        return HEADER_SIZE + index * mRecordSize;
+    }
+
+    void appendSample(long timestamp, int series, int value) {
+        final int offset = offset(mCount++);
+
+        mBuffer.putLong(offset + TIMESTAMP, timestamp);
+        mBuffer.putInt(offset + SERIES, series);
+        mBuffer.putInt(offset + MIN, value);
+    }
+
+    void appendAggregate(long timestamp, int series, int count, int min, int max, long sum) {
+        final int offset = offset(mCount++);
+
+        mBuffer.putLong(offset + TIMESTAMP, timestamp);
+        mBuffer.putInt(offset + SERIES, series);
+        mBuffer.putInt(offset + MIN, min);
+        mBuffer.putInt(offset + COUNT, count);
+        mBuffer.putInt(offset + MAX, max);
+        mBuffer.putLong(offset + SUM, sum);
+    }
+
+    /**
+     * Publishes the records appended since the last call, count and rolled sequence are
+     * written at once.
+     */
+    void commit() {
+        mBuffer.putLong(HEADER_COUNT, ((long) mCount << 32) | (mRolled & 0xffffffffL));
+    }
+
+    /**
+     * Writes the segment to disk, called once it is full.
+     */
+    void force() {
+        mBuffer.force();
+    }
+
+    long getTimestamp(int index) {
+        return mBuffer.getLong(offset(index) + TIMESTAMP);
+    }
+
+    int getSeries(int index) {
+        return mBuffer.getInt(offset(index) + SERIES);
+    }
+
+    int getMin(int index) {
+        return mBuffer.getInt(offset(index) + MIN);
+    }
+
+    int getMax(int index) {
+        return mIsRaw ? getMin(index) : mBuffer.getInt(offset(index) + MAX);
+    }
+
+    int getCount(int index) {
+        return mIsRaw ? 1 : mBuffer.getInt(offset(index) + COUNT);
+    }
+
+    long getSum(int index) {
+        return mIsRaw ? getMin(index) : mBuffer.getLong(offset(index) + SUM);
+    }
+
+}
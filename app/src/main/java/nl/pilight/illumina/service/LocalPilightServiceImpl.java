@@ -0,0 +1,39 @@
+/*
+ * illumina, a pilight remote
+ *
+ * Copyright (c) 2014 Peter Heisig <http://google.com/+PeterHeisig>
+ *
+ * illumina is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * illumina is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with illumina. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.pilight.illumina.service;
+
+import android.content.Intent;
+import android.os.IBinder;
+
+/**
+ * The pilight service running in the application process instead of ":pilight".
+ * Bound clients are called directly, nothing is marshalled. They get copies of the
+ * service's {@link nl.pilight.illumina.pilight.Device} and
+ * {@link nl.pilight.illumina.pilight.Location} instances, which the service keeps updating
+ * on its own thread.
+ */
+public class LocalPilightServiceImpl extends PilightServiceImpl {
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return new LocalBinder();
+    }
+
+}
@@ -0,0 +1,250 @@
+/*
+ * illumina, a pilight remote
+ *
+ * Copyright (c) 2014 Peter Heisig <http://google.com/+PeterHeisig>
+ *
+ * illumina is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * illumina is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with illumina. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.pilight.illumina.service;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import nl.pilight.illumina.pilight.Device;
+
+/**
+ * Commands sent to pilight but not yet confirmed by an update, one per device and property.
+ * The next update of the device reporting the command's property settles the command and
+ * its round trip time is counted per device type. Value and dim level changes are shown
+ * right away by the service; if pilight does not confirm one within
+ * {@link #CONFIRMATION_TIMEOUT}, the previous state is handed back for a rollback. The
+ * listener learns about the outcome of every command.
+ *
+ * Must be used on the thread of the handler passed to the constructor.
+ */
+class PendingDeviceChanges {
+
+    public static final Logger log = LoggerFactory.getLogger(PendingDeviceChanges.class);
+
+    /** Time pilight gets to confirm a change */
+    public static final int CONFIRMATION_TIMEOUT = 3 * 1000;
+
+    private static final Device.Properties[] PROPERTIES = Device.Properties.values();
+
+    interface Listener {
+
+        void onRollback(String locationId, String deviceId, int property,
+                        String previousValue, int previousDimLevel);
+
+        /** Called once per command, when it was confirmed, overruled or timed out */
+        void onSettled(String locationId, String deviceId, int property, boolean isConfirmed);
+
+    }
+
+    private class PendingChange implements Runnable {
+
+        final String mKey;
+        final String mLocationId;
+        final String mDeviceId;
+        final Device.DeviceTypes mType;
+        final int mProperty;
+        final String mPreviousValue;
+        final int mPreviousDimLevel;
+
+        String mValue;
+        int mDimLevel;
+        long mSentAt;
+
+        PendingChange(String key, Device device, int property) {
+            mKey = key;
+            mLocationId = device.getLocationId();
+            mDeviceId = device.getId();
+            mType = device.getType();
+            mProperty = property;
+            mPreviousValue = device.getValue();
+            mPreviousDimLevel = device.getDimLevel();
+        }
+
+        /** Whether an update reporting the given Device.CHANGED_ bits answers the command */
+        boolean isReportedBy(int reported) {
+            if (mProperty == Device.Properties.DIMLEVEL.ordinal()) {
+                return (reported & Device.CHANGED_DIMLEVEL) != 0;
+            } else if (mProperty == Device.Properties.VALUE.ordinal()) {
+                return (reported & Device.CHANGED_VALUE) != 0;
+            } else {
+                // any update answers a poll
+                return reported != 0;
+            }
+        }
+
+        /**
+         * Whether the device shows the requested state, to be called for updates reporting
+         * the property only, the device holds pilight's value then instead of the optimistic one.
+         */
+        boolean isConfirmedBy(Device device) {
+            if (mProperty == Device.Properties.DIMLEVEL.ordinal()) {
+                return mDimLevel == device.getDimLevel();
+            } else if (mProperty == Device.Properties.VALUE.ordinal()) {
+                return TextUtils.equals(mValue, device.getValue());
+            } else {
+                return true;
+            }
+        }
+
+        @Override
+        public void run() {
+            mPending.remove(mKey);
+            getHistogram(mType).addTimeout();
+
+            log.warn("command " + PROPERTIES[mProperty] + " for " + mDeviceId
+                    + " not confirmed after " + CONFIRMATION_TIMEOUT + "ms");
+
+            if (mProperty != Device.Properties.UPDATE.ordinal()) {
+                mListener.onRollback(mLocationId, mDeviceId, mProperty,
+                        mPreviousValue, mPreviousDimLevel);
+            }
+
+            mListener.onSettled(mLocationId, mDeviceId, mProperty, false);
+        }
+
+    }
+
+    private final Handler mHandler;
+
+    private final Listener mListener;
+
+    private final Map<String, PendingChange> mPending = new HashMap<>();
+
+    private final Map<Device.DeviceTypes, CommandLatencyHistogram> mHistograms = new HashMap<>();
+
+    PendingDeviceChanges(Handler handler, Listener listener) {
+        mHandler = handler;
+        mListener = listener;
+    }
+
+    private static String getKey(String locationId, String deviceId, int property) {
+        return locationId + '/' + deviceId + '/' + property;
+    }
+
+    private CommandLatencyHistogram getHistogram(Device.DeviceTypes type) {
+        CommandLatencyHistogram histogram = mHistograms.get(type);
+
+        if (histogram == null) {
+            histogram = new CommandLatencyHistogram(String.valueOf(type));
+            mHistograms.put(type, histogram);
+        }
+
+        return histogram;
+    }
+
+    /**
+     * Registers a command for the device, to be called before the intended state is
+     * applied to it. A command overriding a pending one keeps its rollback state and
+     * restarts the clock.
+     *
+     * @param sendDelay milliseconds until the command is actually sent
+     */
+    void add(Device device, int property, String value, int dimLevel, long sendDelay) {
+        final String key = getKey(device.getLocationId(), device.getId(), property);
+        PendingChange change = mPending.get(key);
+
+        if (change == null) {
+            change = new PendingChange(key, device, property);
+            mPending.put(key, change);
+        } else {
+            mHandler.removeCallbacks(change);
+        }
+
+        change.mValue = value;
+        change.mDimLevel = dimLevel;
+        change.mSentAt = SystemClock.uptimeMillis() + sendDelay;
+
+        mHandler.postDelayed(change, sendDelay + CONFIRMATION_TIMEOUT);
+    }
+
+    /**
+     * Settles the pending commands of the device after pilight reported its state.
+     * Commands for properties the update did not report keep waiting.
+     *
+     * @param reported the Device.CHANGED_ bits of the attributes the update reported
+     */
+    void confirm(Device device, int reported) {
+        if (mPending.isEmpty()) {
+            return;
+        }
+
+        final long now = SystemClock.uptimeMillis();
+
+        for (int property = 0; property < PROPERTIES.length; property++) {
+            final String key = getKey(device.getLocationId(), device.getId(), property);
+            final PendingChange change = mPending.get(key);
+
+            // commands still held back by the rate limiter cannot be confirmed yet
+            if (change != null && change.mSentAt <= now && change.isReportedBy(reported)) {
+                mPending.remove(key);
+                settle(change, device);
+            }
+        }
+    }
+
+    private void settle(PendingChange change, Device device) {
+        mHandler.removeCallbacks(change);
+
+        final long roundTrip = SystemClock.uptimeMillis() - change.mSentAt;
+        final boolean isConfirmed = change.isConfirmedBy(device);
+
+        // only a matching state answers the command, another one tells nothing about its latency
+        if (isConfirmed) {
+            getHistogram(change.mType).add(roundTrip);
+            log.info("command " + PROPERTIES[change.mProperty] + " for " + device.getId()
+                    + " confirmed after " + roundTrip + "ms");
+        } else {
+            getHistogram(change.mType).addOverruled();
+            log.info("command " + PROPERTIES[change.mProperty] + " for " + device.getId()
+                    + " overruled by pilight after " + roundTrip + "ms");
+        }
+
+        mListener.onSettled(change.mLocationId, change.mDeviceId, change.mProperty, isConfirmed);
+    }
+
+    /**
+     * Counts a command held back by the rate limiter.
+     */
+    void addThrottled(Device device) {
+        getHistogram(device.getType()).addThrottled();
+    }
+
+    /**
+     * Returns copies of the latency histograms of all device types commands were sent for.
+     */
+    ArrayList<CommandLatencyHistogram> getHistograms() {
+        final ArrayList<CommandLatencyHistogram> histograms = new ArrayList<>(mHistograms.size());
+
+        for (CommandLatencyHistogram histogram : mHistograms.values()) {
+            histograms.add(new CommandLatencyHistogram(histogram));
+        }
+
+        return histograms;
+    }
+
+}
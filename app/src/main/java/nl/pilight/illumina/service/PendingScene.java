@@ -0,0 +1,107 @@
+/*
+ * illumina, a pilight remote
+ *
+ * Copyright (c) 2014 Peter Heisig <http://google.com/+PeterHeisig>
+ *
+ * illumina is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * illumina is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with illumina. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.pilight.illumina.service;
+
+import android.os.Messenger;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+
+import nl.pilight.illumina.pilight.Device;
+
+/**
+ * Outcome of the device changes of one scene request. Each change is settled once pilight
+ * confirmed, overruled or ignored it; the scene completes when all of them are settled.
+ */
+class PendingScene {
+
+    final int mSceneId;
+
+    /** Remote client to report the outcome to */
+    Messenger mReplyTo;
+
+    /** In-process client to report the outcome to */
+    PilightBinder.ServiceListener mLocalReplyTo;
+
+    private final ArrayList<Device> mDevices;
+
+    private final int[] mProperties;
+
+    private final boolean[] mIsSettled;
+
+    private final boolean[] mIsConfirmed;
+
+    private int mRemaining;
+
+    PendingScene(int sceneId, ArrayList<Device> devices, int[] properties) {
+        mSceneId = sceneId;
+        mDevices = devices;
+        mProperties = properties;
+        mIsSettled = new boolean[devices.size()];
+        mIsConfirmed = new boolean[devices.size()];
+        mRemaining = devices.size();
+    }
+
+    int size() {
+        return mDevices.size();
+    }
+
+    Device getDevice(int index) {
+        return mDevices.get(index);
+    }
+
+    int getProperty(int index) {
+        return mProperties[index];
+    }
+
+    void settle(int index, boolean isConfirmed) {
+        if (!mIsSettled[index]) {
+            mIsSettled[index] = true;
+            mIsConfirmed[index] = isConfirmed;
+            mRemaining--;
+        }
+    }
+
+    /**
+     * Settles all unsettled changes of the given device and property, a scene may
+     * contain the same change more than once.
+     */
+    void settle(String locationId, String deviceId, int property, boolean isConfirmed) {
+        for (int i = 0; i < mDevices.size(); i++) {
+            final Device device = mDevices.get(i);
+
+            if (mProperties[i] == property
+                    && TextUtils.equals(device.getId(), deviceId)
+                    && TextUtils.equals(device.getLocationId(), locationId)) {
+                settle(i, isConfirmed);
+            }
+        }
+    }
+
+    boolean isComplete() {
+        return mRemaining == 0;
+    }
+
+    /** Per device change in request order, whether pilight confirmed it */
+    boolean[] getConfirmed() {
+        return mIsConfirmed;
+    }
+
+}
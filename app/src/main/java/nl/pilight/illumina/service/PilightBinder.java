@@ -51,6 +51,8 @@ public class PilightBinder {
 
         void onPilightConnected();
 
+        void onPilightConnecting();
+
         void onPilightDisconnected();
 
         void onPilightDeviceChange(Device device);
@@ -63,6 +65,15 @@ public class PilightBinder {
 
         void onLocationResponse(Location location);
 
+        void onCommandStatsResponse(ArrayList<CommandLatencyHistogram> histograms,
+                                    long staleUpdates);
+
+        void onSceneResponse(int sceneId, boolean[] confirmed);
+
+        void onSensorHistoryResponse(SensorHistory history);
+
+        void onSensorStatisticsResponse(ArrayList<SensorStatistics> statistics);
+
     }
 
     public PilightBinder(ServiceListener listener) {
@@ -72,6 +83,9 @@ public class PilightBinder {
     /** Messenger for communicating with service. */
     private Messenger mService = null;
 
+    /** Binder of the in-process service, set instead of mService. */
+    private PilightServiceImpl.LocalBinder mLocalService = null;
+
     /** Flag indicating whether we have called bind on the service. */
     private boolean mIsBound;
 
@@ -92,6 +106,10 @@ public class PilightBinder {
                     mListener.onPilightConnected();
                     break;
 
+                case PilightService.News.CONNECTING:
+                    mListener.onPilightConnecting();
+                    break;
+
                 case PilightService.News.DISCONNECTED:
                     mListener.onPilightDisconnected();
                     break;
@@ -113,8 +131,37 @@ public class PilightBinder {
                             data.<Location>getParcelable(PilightService.Extra.LOCATION));
                     break;
 
+                case PilightService.News.COMMAND_STATS:
+                    assert data != null;
+                    mListener.onCommandStatsResponse(
+                            data.<CommandLatencyHistogram>getParcelableArrayList(
+                                    PilightService.Extra.COMMAND_STATS),
+                            data.getLong(PilightService.Extra.STALE_UPDATES));
+                    break;
+
+                case PilightService.News.SCENE:
+                    assert data != null;
+                    mListener.onSceneResponse(msg.arg1,
+                            data.getBooleanArray(PilightService.Extra.CONFIRMED));
+                    break;
+
+                case PilightService.News.SENSOR_HISTORY:
+                    assert data != null;
+                    mListener.onSensorHistoryResponse(
+                            data.<SensorHistory>getParcelable(PilightService.Extra.SENSOR_HISTORY));
+                    break;
+
+                case PilightService.News.SENSOR_STATISTICS:
+                    assert data != null;
+                    mListener.onSensorStatisticsResponse(
+                            data.<SensorStatistics>getParcelableArrayList(
+                                    PilightService.Extra.SENSOR_STATISTICS));
+                    break;
+
                 case PilightService.News.DEVICE_CHANGE:
                     assert data != null;
+                    logDeliveryLatency(data.getLong(PilightService.Extra.DISPATCHED_AT));
+
                     mListener.onPilightDeviceChange(
                             data.<Device>getParcelable(PilightService.Extra.DEVICE));
                     break;
@@ -125,6 +172,17 @@ public class PilightBinder {
         }
     }
 
+    /**
+     * Logs the time a device change took from the service to the client, remote as well as
+     * in-process clients report it, to compare both modes.
+     */
+    static void logDeliveryLatency(long dispatchedAt) {
+        if (log.isDebugEnabled()) {
+            log.debug("device change delivered after "
+                    + (System.nanoTime() - dispatchedAt) / 1000 + "us");
+        }
+    }
+
     /**
      * Target we publish for clients to send messages to IncomingHandler.
      */
@@ -137,6 +195,13 @@ public class PilightBinder {
 
         @Override
         public void onServiceConnected(ComponentName className, IBinder service) {
+            if (service instanceof PilightServiceImpl.LocalBinder) {
+                mLocalService = (PilightServiceImpl.LocalBinder) service;
+                mLocalService.register(mListener);
+                mListener.onServiceConnected();
+                return;
+            }
+
             // This is called when the connection with the service has been
             // established, giving us the service object we can use to
             // interact with the service.  We are communicating with our
@@ -168,6 +233,7 @@ public class PilightBinder {
             // This is called when the connection with the service has been
             // unexpectedly disconnected -- that is, its process crashed.
             mService = null;
+            mLocalService = null;
 
             mListener.onServiceDisconnected();
         }
@@ -178,7 +244,8 @@ public class PilightBinder {
         // class name because there is no reason to be able to let other
         // applications replace our component.
         contextWrapper.bindService(
-                new Intent(contextWrapper.getApplicationContext(), PilightServiceImpl.class),
+                new Intent(contextWrapper.getApplicationContext(),
+                        PilightServiceImpl.getServiceClass()),
                 mConnection, Context.BIND_AUTO_CREATE);
 
         mIsBound = true;
@@ -188,7 +255,11 @@ public class PilightBinder {
         if (mIsBound) {
             // If we have received the service, and hence registered with
             // it, then now is the time to unregister.
-            if (mService != null) {
+            if (mLocalService != null) {
+                mLocalService.unregister(mListener);
+                mLocalService = null;
+
+            } else if (mService != null) {
                 try {
                     Message msg = Message.obtain(null, PilightService.Request.UNREGISTER);
 
@@ -209,6 +280,11 @@ public class PilightBinder {
     }
 
     public void send(Message message) {
+        if (mLocalService != null) {
+            mLocalService.send(message, mListener);
+            return;
+        }
+
         try {
             message.replyTo = mMessenger;
             mService.send(message);
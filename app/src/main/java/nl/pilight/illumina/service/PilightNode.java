@@ -0,0 +1,384 @@
+/*
+ * illumina, a pilight remote
+ *
+ * Copyright (c) 2014 Peter Heisig <http://google.com/+PeterHeisig>
+ *
+ * illumina is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * illumina is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with illumina. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.pilight.illumina.service;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.text.TextUtils;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.pilight.illumina.communication.StreamingSocket;
+import nl.pilight.illumina.communication.StreamingSocketImpl;
+import nl.pilight.illumina.pilight.Device;
+import nl.pilight.illumina.pilight.Location;
+import nl.pilight.illumina.pilight.Setting;
+
+/**
+ * Connection to an additional pilight daemon. Every node runs its own protocol thread, so
+ * a slow or unreachable daemon never holds up the others. Its locations are shown next to
+ * the ones of the main connection, their ids suffixed by the node's endpoint, see
+ * {@link #owns(String)}. Devices handed out and taken in carry these namespaced ids.
+ */
+class PilightNode implements Setting.RemoteChangeHandler {
+
+    public static final Logger log = LoggerFactory.getLogger(PilightNode.class);
+
+    /** Delay before a lost node is connected again */
+    public static final int RECONNECT_DELAY = 5 * 1000;
+
+    interface Listener {
+
+        /** The locations or devices of the node changed as a whole */
+        void onNodeSettingChanged(PilightNode node);
+
+        /**
+         * The node's daemon reported a device, changed or not, the device is a namespaced
+         * copy keeping the change mask.
+         *
+         * @param reported the Device.CHANGED_ bits of the attributes reported
+         */
+        void onNodeDeviceChange(PilightNode node, Device device, int reported);
+
+    }
+
+    private enum State {
+        Disconnected,
+        HandshakePending,
+        ConfigRequested,
+        Connected
+    }
+
+    private final String mHost;
+
+    private final int mPort;
+
+    private final String mSuffix;
+
+    private final Listener mListener;
+
+    private final HandlerThread mThread;
+
+    private final Handler mHandler;
+
+    private final StreamingSocket mSocket;
+
+    private final DeviceCommandEncoder mCommandEncoder = new DeviceCommandEncoder();
+
+    private volatile Setting mSetting;
+
+    private State mState = State.Disconnected;
+
+    private boolean mIsStopped;
+
+    private volatile long mStaleUpdateCount;
+
+    private class NodeHandler extends Handler {
+
+        NodeHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            final Bundle data = msg.getData();
+
+            switch (msg.what) {
+                case StreamingSocket.MSG_CONNECTED:
+                    onSocketConnected();
+                    break;
+
+                case StreamingSocket.MSG_DISCONNECTED:
+                case StreamingSocket.MSG_ERROR:
+                    onSocketLost();
+                    break;
+
+                case StreamingSocket.MSG_MESSAGE_RECEIVED:
+                    assert data != null;
+                    onSocketMessage(data.getString(StreamingSocket.EXTRA_MESSAGE));
+                    break;
+
+                default:
+                    log.warn("unhandled message from socket");
+                    break;
+            }
+        }
+    }
+
+    private final Runnable mConnect = new Runnable() {
+        @Override
+        public void run() {
+            if (!mIsStopped) {
+                log.info(mSuffix + ": connecting");
+                mSocket.connect(mHost, mPort);
+            }
+        }
+    };
+
+    PilightNode(String host, int port, Listener listener) {
+        mHost = host;
+        mPort = port;
+        mSuffix = "@" + host + ":" + port;
+        mListener = listener;
+
+        mThread = new HandlerThread("PILIGHT NODE " + host + ":" + port);
+        mThread.start();
+
+        mHandler = new NodeHandler(mThread.getLooper());
+        mSocket = new StreamingSocketImpl(mHandler);
+    }
+
+    String getHost() {
+        return mHost;
+    }
+
+    int getPort() {
+        return mPort;
+    }
+
+    void start() {
+        mHandler.post(mConnect);
+    }
+
+    /**
+     * Closes the connection and ends the node's thread, the node cannot be started again.
+     */
+    void stop() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mIsStopped = true;
+                mHandler.removeCallbacks(mConnect);
+                mSocket.disconnect();
+                mState = State.Disconnected;
+                Looper.myLooper().quit();
+            }
+        });
+    }
+
+    /** Whether the namespaced location id belongs to this node */
+    boolean owns(String locationId) {
+        return locationId != null && locationId.endsWith(mSuffix);
+    }
+
+    private String toNodeId(String locationId) {
+        return locationId.substring(0, locationId.length() - mSuffix.length());
+    }
+
+    private String toNamespacedId(String locationId) {
+        return locationId + mSuffix;
+    }
+
+    /**
+     * Returns namespaced copies of the node's locations, none while the node was never connected.
+     */
+    List<Location> getLocations() {
+        final Setting setting = mSetting;
+        final List<Location> locations = new ArrayList<>();
+
+        if (setting != null) {
+            synchronized (setting) {
+                for (Location location : setting.values()) {
+                    locations.add(copy(location));
+                }
+            }
+        }
+
+        return locations;
+    }
+
+    /**
+     * Returns a namespaced copy of the location, or null if the node does not know it.
+     */
+    Location getLocation(String locationId) {
+        final Setting setting = mSetting;
+
+        if (setting == null) {
+            return null;
+        }
+
+        synchronized (setting) {
+            final Location location = setting.get(toNodeId(locationId));
+            return location != null ? copy(location) : null;
+        }
+    }
+
+    private Location copy(Location location) {
+        final Location copy = new Location();
+
+        copy.setId(toNamespacedId(location.getId()));
+        copy.setName(location.getName() + " (" + mHost + ")");
+        copy.setOrder(location.getOrder());
+
+        for (Device device : location.values()) {
+            copy.put(copy(device));
+        }
+
+        return copy;
+    }
+
+    private Device copy(Device device) {
+        final Device copy = new Device(device);
+        copy.setLocationId(toNamespacedId(device.getLocationId()));
+        return copy;
+    }
+
+    /**
+     * Sends the change of a device with a namespaced location id to the node's daemon.
+     */
+    void send(Device device, final int changedProperty) {
+        final Device nodeDevice = new Device(device);
+        nodeDevice.setLocationId(toNodeId(device.getLocationId()));
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mState != State.Connected) {
+                    log.info(mSuffix + ": not connected, command for " + nodeDevice.getId()
+                            + " dropped");
+                    return;
+                }
+
+                mSocket.send(mCommandEncoder.encode(nodeDevice, changedProperty));
+            }
+        });
+    }
+
+    @Override
+    public void onRemoteChange(Device device, int reported) {
+        // called while the setting is updated on this thread, holding its monitor,
+        // unchanged devices are passed on too as they confirm commands
+        mListener.onNodeDeviceChange(this, copy(device), reported);
+    }
+
+    @Override
+    public void onStaleUpdate(Device device) {
+        mStaleUpdateCount++;
+    }
+
+    /**
+     * Returns the number of updates dropped because they were older than the device state.
+     */
+    long getStaleUpdateCount() {
+        return mStaleUpdateCount;
+    }
+
+    private void onSocketConnected() {
+        log.info(mSuffix + ": connected, handshake initiated");
+
+        sendMessage("client gui");
+        mState = State.HandshakePending;
+    }
+
+    private void onSocketLost() {
+        if (mIsStopped) {
+            return;
+        }
+
+        log.info(mSuffix + ": connection lost, reconnecting in " + RECONNECT_DELAY + "ms");
+
+        mState = State.Disconnected;
+        mSocket.disconnect();
+        mHandler.removeCallbacks(mConnect);
+        mHandler.postDelayed(mConnect, RECONNECT_DELAY);
+    }
+
+    private void onSocketMessage(String message) {
+        final JSONObject json;
+
+        try {
+            json = new JSONObject(message);
+        } catch (JSONException exception) {
+            log.info(mSuffix + ": decoding json failed with: " + exception.getMessage());
+            return;
+        }
+
+        switch (mState) {
+            case HandshakePending:
+                if (TextUtils.equals("accept client", json.optString("message"))) {
+                    sendMessage("request config");
+                    mState = State.ConfigRequested;
+                } else {
+                    log.warn(mSuffix + ": handshake rejected");
+                    onSocketLost();
+                }
+                break;
+
+            case ConfigRequested:
+                onConfigResponse(json);
+                break;
+
+            case Connected:
+                if (TextUtils.equals(json.optString("origin"), "config")) {
+                    mSetting.update(json);
+                }
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    private void onConfigResponse(JSONObject json) {
+        final JSONObject config = json.optJSONObject("config");
+
+        if (config == null) {
+            log.warn(mSuffix + ": no config received");
+            onSocketLost();
+            return;
+        }
+
+        try {
+            mSetting = Setting.create(this, config);
+        } catch (JSONException exception) {
+            log.warn(mSuffix + ": error reading config " + exception.getMessage());
+            onSocketLost();
+            return;
+        }
+
+        mSocket.startHeartBeat();
+        mState = State.Connected;
+
+        log.info(mSuffix + ": " + mSetting.size() + " locations received");
+        mListener.onNodeSettingChanged(this);
+    }
+
+    private void sendMessage(String message) {
+        final JSONObject json = new JSONObject();
+
+        try {
+            json.put("message", message);
+        } catch (JSONException exception) {
+            log.error(mSuffix + ": error creating message", exception);
+        }
+
+        mSocket.send(json.toString());
+    }
+
+}
@@ -47,6 +47,23 @@ public interface PilightService {
 
         public static final int STATE = 140;
 
+        /** Requests the round trip times of commands per device type */
+        public static final int COMMAND_STATS = 160;
+
+        /** Changes several devices at once. The devices and their changed properties are
+         * passed as {@link Extra#DEVICE_LIST} and {@link Extra#CHANGED_PROPERTIES}, arg1 is
+         * an id of the client's choice which is returned with {@link News#SCENE}. */
+        public static final int SCENE = 180;
+
+        /** Requests the recorded readings of a sensor of the device given as
+         * {@link Extra#LOCATION_ID} and {@link Extra#DEVICE_ID}, arg1 is one of the
+         * SENSOR_ constants of {@link SensorHistory}. */
+        public static final int SENSOR_HISTORY = 200;
+
+        /** Requests the running statistics of all sensors in the location given as
+         * {@link Extra#LOCATION_ID}. */
+        public static final int SENSOR_STATISTICS = 220;
+
     }
 
     interface News {
@@ -54,6 +71,9 @@ public interface PilightService {
         /** Established connection indication message */
         public static final int CONNECTED = 60;
 
+        /** Connection in progress, the last known setting can already be requested */
+        public static final int CONNECTING = 150;
+
         /** Closed connection indication message */
         public static final int DISCONNECTED = 70;
 
@@ -66,6 +86,18 @@ public interface PilightService {
 
         public static final int LOCATION = 120;
 
+        public static final int COMMAND_STATS = 170;
+
+        /** All changes of a scene are settled, arg1 is the scene id, {@link Extra#CONFIRMED}
+         * tells for each change whether pilight confirmed it */
+        public static final int SCENE = 190;
+
+        /** The readings of a sensor as {@link Extra#SENSOR_HISTORY} */
+        public static final int SENSOR_HISTORY = 210;
+
+        /** The statistics of the sensors of a location as {@link Extra#SENSOR_STATISTICS} */
+        public static final int SENSOR_STATISTICS = 230;
+
     }
 
     interface Extra {
@@ -78,8 +110,31 @@ public interface PilightService {
 
         public static final String LOCATION_ID = "location_id";
 
+        public static final String DEVICE_ID = "device_id";
+
         public static final String CHANGED_PROPERTY = "changed_property";
 
+        public static final String DEVICE_LIST = "device_list";
+
+        public static final String CHANGED_PROPERTIES = "changed_properties";
+
+        public static final String CONFIRMED = "confirmed";
+
+        /** List of {@link CommandLatencyHistogram}s */
+        public static final String COMMAND_STATS = "command_stats";
+
+        /** Number of updates from pilight dropped because they were outdated */
+        public static final String STALE_UPDATES = "stale_updates";
+
+        /** A {@link SensorHistory} */
+        public static final String SENSOR_HISTORY = "sensor_history";
+
+        /** List of {@link SensorStatistics} */
+        public static final String SENSOR_STATISTICS = "sensor_statistics";
+
+        /** {@link System#nanoTime()} at which the service dispatched a news */
+        public static final String DISPATCHED_AT = "dispatched_at";
+
     }
 
     interface Error {
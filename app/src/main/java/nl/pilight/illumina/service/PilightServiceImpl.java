@@ -22,36 +22,110 @@ package nl.pilight.illumina.service;
 
 import android.app.Service;
 import android.content.Intent;
+import android.os.Binder;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.text.TextUtils;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import nl.pilight.Illumina;
+import nl.pilight.illumina.BuildConfig;
 import nl.pilight.illumina.communication.StreamingSocket;
 import nl.pilight.illumina.communication.StreamingSocketImpl;
 import nl.pilight.illumina.pilight.Device;
 import nl.pilight.illumina.pilight.Location;
 import nl.pilight.illumina.pilight.Setting;
-
-public class PilightServiceImpl extends Service implements PilightService, Setting.RemoteChangeHandler {
+import nl.pilight.illumina.pilight.SettingSnapshot;
+
+/**
+ * Threading: the connection state machine, the socket callbacks and all changes of the
+ * {@link Setting} run on the "PILIGHT PROTOCOL" thread. Client requests arrive on the main
+ * thread; requests changing the connection or a device are forwarded to the protocol thread,
+ * read requests are answered right away from the current setting. A new config is parsed
+ * into a fresh setting which replaces the current one when complete, device values are
+ * only changed while holding the setting's monitor.
+ * Device changes of clients are applied to the setting right away and rolled back unless
+ * pilight confirms them in time.
+ * In-process clients are always called on the main thread and get copies of the devices
+ * and locations, taken while holding the setting's monitor.
+ */
+public class PilightServiceImpl extends Service implements PilightService, Setting.RemoteChangeHandler,
+        PendingDeviceChanges.Listener, DeviceRateLimiter.Sender, PilightNode.Listener {
 
     public static final Logger log = LoggerFactory.getLogger(PilightServiceImpl.class);
 
-    private Setting mSetting;
+    public static final String SNAPSHOT_FILE_NAME = "setting.snapshot";
+
+    public static final String JOURNAL_FILE_NAME = "command.journal";
+
+    public static final String HISTORY_DIRECTORY_NAME = "history";
+
+    /** Delay to collect device changes before the snapshot is written */
+    public static final int SNAPSHOT_DELAY = 5 * 1000;
+
+    /** Time to wait for the values before falling back to the config */
+    public static final int VALUES_TIMEOUT = 2 * 1000;
+
+    /** Estimated thread wakeups per heartbeat: heartbeat, writer, reader and protocol thread */
+    private static final int HEARTBEAT_WAKEUPS = 4;
+
+    /** Estimated payload bytes per heartbeat, "HEART\n" sent and "BEAT\n" received */
+    private static final int HEARTBEAT_BYTES = 11;
+
+    private volatile Setting mSetting;
 
     private boolean mCurrentlyTriesReconnecting;
 
+    /** Whether the config or values were requested together with the handshake */
+    private boolean mIsRequestPipelined;
+
+    /** Whether the current handshake only resyncs the values of the current setting */
+    private boolean mIsValuesResync;
+
+    /** Set once pilight did not answer a values request, later resyncs fetch the config */
+    private boolean mIsValuesResyncUnsupported;
+
+    /** Set once pilight rejected a pipelined handshake, later ones are sequential */
+    private boolean mIsPipelinedHandshakeRejected;
+
+    /** Whether the connection was closed because no client was bound for a while */
+    private volatile boolean mIsSuspended;
+
+    private long mSuspendedAt;
+
+    /** Heartbeats skipped while suspended, estimated from the heartbeat interval */
+    private long mSkippedHeartbeats;
+
+    /** Whether clients were told about connecting and wait for a CONNECTED news */
+    private volatile boolean mIsConnectingAnnounced;
+
+    /** Updates from pilight that did not change anything shown */
+    private long mSuppressedChangeCount;
+
+    /** Updates from pilight dropped because they were older than the device state */
+    private long mStaleUpdateCount;
+
     private enum PilightState {
         Connected,
         Connecting,
@@ -59,12 +133,52 @@ public class PilightServiceImpl extends Service implements PilightService, Setti
         Disconnecting,
         HandshakePending,
         ConfigRequested,
+        ValuesRequested,
         Error
     }
 
-    private PilightState mState = PilightState.Disconnected;
+    private volatile PilightState mState = PilightState.Disconnected;
+
+    private final HandlerThread mProtocolThread = new HandlerThread("PILIGHT PROTOCOL");
+
+    /** Handler of the protocol thread, receiving the socket's messages */
+    private Handler mPilightHandler;
+
+    private StreamingSocket mPilight;
+
+    /** Device changes shown optimistically, awaiting pilight's confirmation */
+    private PendingDeviceChanges mPendingChanges;
+
+    /** Device changes requested while disconnected, only used on the protocol thread */
+    private CommandJournal mJournal;
+
+    /** Holds back commands to honor the min-interval of devices */
+    private DeviceRateLimiter mRateLimiter;
+
+    /** Readings of the sensors of all devices, only used on the protocol thread */
+    private SensorHistories mSensorHistories;
+
+    /** Sensor readings on disk, written on a thread of its own */
+    private HistoryLog mHistoryLog;
+
+    /** Only used on the protocol thread */
+    private final DeviceCommandEncoder mCommandEncoder = new DeviceCommandEncoder();
+
+    /** Collects the commands of a scene to send them at once, null otherwise */
+    private StringBuilder mBatch;
+
+    /** Connections to the additional pilight daemons, see {@link PilightNode} */
+    private final CopyOnWriteArrayList<PilightNode> mNodes = new CopyOnWriteArrayList<>();
+
+    /** Scenes waiting for the outcome of their device changes */
+    private final List<PendingScene> mPendingScenes = new ArrayList<>();
+
+    private class PilightHandler extends Handler {
+
+        PilightHandler(Looper looper) {
+            super(looper);
+        }
 
-    private final Handler mPilightHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
             final Bundle data = msg.getData();
@@ -99,9 +213,61 @@ public class PilightServiceImpl extends Service implements PilightService, Setti
                     break;
             }
         }
+    }
+
+    private final Runnable mSaveSnapshot = new Runnable() {
+        @Override
+        public void run() {
+            saveSnapshot();
+        }
+    };
+
+    private final Runnable mSuspend = new Runnable() {
+        @Override
+        public void run() {
+            suspend();
+        }
+    };
+
+    private final Runnable mCheckIdle = new Runnable() {
+        @Override
+        public void run() {
+            if (mClients.isEmpty() && mLocalClients.isEmpty()) {
+                final int idleTimeout = getIdleTimeoutFromPreferences();
+
+                if (idleTimeout > 0 && !mIsSuspended) {
+                    log.info("no clients left, suspending in " + idleTimeout + "s");
+                    mPilightHandler.removeCallbacks(mSuspend);
+                    mPilightHandler.postDelayed(mSuspend, idleTimeout * 1000L);
+                }
+
+            } else {
+                mPilightHandler.removeCallbacks(mSuspend);
+
+                if (mIsSuspended) {
+                    resume();
+                }
+            }
+        }
+    };
+
+    private final Runnable mReconnect = new Runnable() {
+        @Override
+        public void run() {
+            log.info("reconnecting");
+            connect();
+        }
     };
 
-    private final StreamingSocket mPilight = new StreamingSocketImpl(mPilightHandler);
+    private final Runnable mValuesTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (mState == PilightState.ValuesRequested) {
+                log.info("values request timed out");
+                onValuesResyncUnsupported();
+            }
+        }
+    };
 
     private void sendSocketMessage(JSONObject json) {
         final String jsonString = json.toString();
@@ -111,10 +277,108 @@ public class PilightServiceImpl extends Service implements PilightService, Setti
     }
 
     @Override
-    public void onRemoteChange(Device device) {
-        final Bundle bundle = new Bundle();
-        bundle.putParcelable(Extra.DEVICE, device);
-        sendBroadcast(News.DEVICE_CHANGE, bundle);
+    public void onRemoteChange(final Device device, int reported) {
+        // an unchanged state still confirms pending commands
+        mPendingChanges.confirm(device, reported);
+        mSensorHistories.record(device, reported);
+
+        if (!device.hasChanges(Device.CHANGES_SHOWN)) {
+            mSuppressedChangeCount++;
+
+            if (log.isDebugEnabled()) {
+                log.debug("unchanged update of " + device.getId() + " suppressed, "
+                        + mSuppressedChangeCount + " so far");
+            }
+
+            return;
+        }
+
+        broadcastDeviceChange(device);
+
+        mPilightHandler.removeCallbacks(mSaveSnapshot);
+        mPilightHandler.postDelayed(mSaveSnapshot, SNAPSHOT_DELAY);
+    }
+
+    @Override
+    public void onStaleUpdate(Device device) {
+        mStaleUpdateCount++;
+    }
+
+    /**
+     * Returns the number of stale updates dropped for this daemon and all additional nodes,
+     * to be called on the protocol thread.
+     */
+    private long getStaleUpdateCount() {
+        long count = mStaleUpdateCount;
+
+        for (PilightNode node : mNodes) {
+            count += node.getStaleUpdateCount();
+        }
+
+        return count;
+    }
+
+    @Override
+    public void onRollback(String locationId, String deviceId, int property,
+                           String previousValue, int previousDimLevel) {
+        final Setting setting = mSetting;
+        final Device device = findDevice(setting, locationId, deviceId);
+
+        if (device == null) {
+            return;
+        }
+
+        synchronized (setting) {
+            device.clearChanges();
+
+            if (property == Device.Properties.DIMLEVEL.ordinal()) {
+                device.setDimLevel(previousDimLevel);
+            } else {
+                device.setValue(previousValue);
+            }
+
+            if (device.hasChanges(Device.CHANGES_SHOWN)) {
+                broadcastDeviceChange(device);
+            }
+        }
+    }
+
+    private static Device findDevice(Setting setting, String locationId, String deviceId) {
+        if (setting == null) {
+            return null;
+        }
+
+        final Location location = setting.get(locationId);
+        return location != null ? location.get(deviceId) : null;
+    }
+
+    /**
+     * To be called holding the monitor of the device's setting, the device is copied for
+     * in-process clients and parcelled for remote ones before it returns.
+     */
+    private void broadcastDeviceChange(Device device) {
+        if (!mLocalClients.isEmpty()) {
+            final Device copy = new Device(device);
+            final long dispatchedAt = System.nanoTime();
+
+            mIncomingHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    PilightBinder.logDeliveryLatency(dispatchedAt);
+
+                    for (PilightBinder.ServiceListener listener : mLocalClients) {
+                        listener.onPilightDeviceChange(copy);
+                    }
+                }
+            });
+        }
+
+        if (!mClients.isEmpty()) {
+            final Bundle bundle = new Bundle();
+            bundle.putParcelable(Extra.DEVICE, device);
+            bundle.putLong(Extra.DISPATCHED_AT, System.nanoTime());
+            sendBroadcast(News.DEVICE_CHANGE, bundle);
+        }
     }
 
     private void onSocketConnectionFailed() {
@@ -133,13 +397,7 @@ public class PilightServiceImpl extends Service implements PilightService, Setti
         log.info("pilight socket error");
         if (!mCurrentlyTriesReconnecting && mState != PilightState.Disconnected) {
             mCurrentlyTriesReconnecting = true;
-            new Handler().postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    log.info("reconnecting");
-                    connect();
-                }
-            }, 100);
+            mPilightHandler.postDelayed(mReconnect, 100);
 
         } else if (mState != PilightState.Disconnected) {
             sendBroadcast(News.ERROR, Error.REMOTE_CLOSED);
@@ -161,9 +419,33 @@ public class PilightServiceImpl extends Service implements PilightService, Setti
 
         sendSocketMessage(json);
 
+        // after a short outage the current setting only needs fresh values
+        mIsValuesResync = mCurrentlyTriesReconnecting && mSetting != null
+                && !mIsValuesResyncUnsupported;
+
+        mIsRequestPipelined = !mIsPipelinedHandshakeRejected
+                && getPipelinedHandshakeFromPreferences();
+
+        if (mIsRequestPipelined) {
+            log.info("- setting requested along with the handshake");
+            sendSettingRequest();
+        }
+
         mState = PilightState.HandshakePending;
     }
 
+    private void sendSettingRequest() {
+        final JSONObject request = new JSONObject();
+
+        try {
+            request.put("message", mIsValuesResync ? "request values" : "request config");
+        } catch (JSONException exception) {
+            log.error("- error creating request message", exception);
+        }
+
+        sendSocketMessage(request);
+    }
+
     private void onSocketMessage(String message) {
         JSONObject json = new JSONObject();
 
@@ -186,6 +468,10 @@ public class PilightServiceImpl extends Service implements PilightService, Setti
                 onPilightConfigResponse(json);
                 break;
 
+            case ValuesRequested:
+                onPilightValuesResponse(json);
+                break;
+
             case HandshakePending:
                 onPilightHandshakeResponse(json);
                 break;
@@ -230,14 +516,24 @@ public class PilightServiceImpl extends Service implements PilightService, Setti
         if (!json.isNull("config")) {
             try {
                 mPilight.startHeartBeat();
-                mSetting = Setting.create(this, json.getJSONObject("config"));
 
-                if (!mCurrentlyTriesReconnecting) {
+                final Setting setting = Setting.create(this, json.getJSONObject("config"));
+
+                if (mCurrentlyTriesReconnecting && mSetting != null && mSetting.merge(setting)) {
+                    log.info("- config merged into current setting");
+                    announceResynced();
+
+                } else {
+                    mSetting = setting;
+
+                    // clients rebuild everything on a (re-)connect
                     sendBroadcast(News.CONNECTED);
                 }
 
                 mCurrentlyTriesReconnecting = false;
                 mState = PilightState.Connected;
+                saveSnapshot();
+                replayJournal();
                 return;
 
             } catch (JSONException exception) {
@@ -249,6 +545,97 @@ public class PilightServiceImpl extends Service implements PilightService, Setti
         mState = PilightState.Error;
     }
 
+    private void onPilightValuesResponse(JSONObject json) {
+        final JSONArray values = json.optJSONArray("values");
+
+        if (values == null && !json.isNull("origin")) {
+            // an update pushed before the response, its "values" are an object
+            onPilightMessage(json);
+            return;
+        }
+
+        log.info("pilight values response");
+
+        if (values == null) {
+            log.info("- no values received");
+            onValuesResyncUnsupported();
+            return;
+        }
+
+        mPilightHandler.removeCallbacks(mValuesTimeout);
+        mPilight.startHeartBeat();
+
+        for (int i = 0; i < values.length(); i++) {
+            final JSONObject update = values.optJSONObject(i);
+
+            if (update != null) {
+                mSetting.update(update);
+            }
+        }
+
+        log.info("- " + values.length() + " value updates applied");
+        announceResynced();
+
+        mCurrentlyTriesReconnecting = false;
+        mState = PilightState.Connected;
+        replayJournal();
+    }
+
+    /**
+     * Tells clients which were told about connecting that the current setting is live
+     * again, they are not rebuilt after a resync otherwise.
+     */
+    private void announceResynced() {
+        if (mIsConnectingAnnounced) {
+            sendBroadcast(News.CONNECTED);
+        }
+    }
+
+    /**
+     * Sends the commands queued while disconnected, in the order they were requested.
+     */
+    private void replayJournal() {
+        if (mJournal.isEmpty()) {
+            return;
+        }
+
+        final long startedAt = SystemClock.uptimeMillis();
+        final List<CommandJournal.Command> commands
+                = mJournal.drain(mPilight.getHost(), mPilight.getPort());
+
+        for (CommandJournal.Command command : commands) {
+            final Device current = findDevice(mSetting, command.mLocationId, command.mDeviceId);
+
+            if (current == null) {
+                log.info("- device " + command.mDeviceId + " is gone, queued command dropped");
+                continue;
+            }
+
+            final Device device = new Device(current);
+            device.setValue(command.mValue);
+            device.setDimLevel(command.mDimLevel);
+
+            onDeviceChangeRequest(device, command.mProperty);
+        }
+
+        log.info(commands.size() + " queued commands replayed in "
+                + (SystemClock.uptimeMillis() - startedAt) + "ms");
+    }
+
+    /**
+     * Falls back to requesting the whole config on the current connection.
+     */
+    private void onValuesResyncUnsupported() {
+        log.info("- values resync unsupported, requesting config");
+
+        mPilightHandler.removeCallbacks(mValuesTimeout);
+        mIsValuesResyncUnsupported = true;
+        mIsValuesResync = false;
+
+        sendSettingRequest();
+        mState = PilightState.ConfigRequested;
+    }
+
     private void onPilightHandshakeResponse(JSONObject json) {
         log.info("pilight handshake response");
 
@@ -257,16 +644,16 @@ public class PilightServiceImpl extends Service implements PilightService, Setti
                 final String message = json.getString("message");
 
                 if (TextUtils.equals("accept client", message)) {
-                    final JSONObject request = new JSONObject();
-
-                    try {
-                        request.put("message", "request config");
-                    } catch (JSONException exception) {
-                        log.error("- error creating config request message", exception);
+                    if (!mIsRequestPipelined) {
+                        sendSettingRequest();
                     }
 
-                    sendSocketMessage(request);
-                    mState = PilightState.ConfigRequested;
+                    if (mIsValuesResync) {
+                        mPilightHandler.postDelayed(mValuesTimeout, VALUES_TIMEOUT);
+                        mState = PilightState.ValuesRequested;
+                    } else {
+                        mState = PilightState.ConfigRequested;
+                    }
 
                     return;
 
@@ -279,16 +666,30 @@ public class PilightServiceImpl extends Service implements PilightService, Setti
             }
         }
 
+        if (mIsRequestPipelined) {
+            // the response to the pipelined request is dropped in the error state
+            log.info("- pipelined handshake rejected, next handshakes will be sequential");
+            mIsPipelinedHandshakeRejected = true;
+        }
+
         sendBroadcast(News.ERROR, Error.HANDSHAKE_FAILED);
         mState = PilightState.Error;
     }
 
     public boolean isConnected() {
-        final boolean isEndpointUnchanged =
-                   getPortFromPreferences() == mPilight.getPort()
+        return isEndpointUnchanged() && mPilight.isConnected();
+    }
+
+    private boolean isEndpointUnchanged() {
+        return getPortFromPreferences() == mPilight.getPort()
                 && TextUtils.equals(getHostFromPreferences(), mPilight.getHost());
+    }
 
-        return isEndpointUnchanged && mPilight.isConnected();
+    private boolean isConnecting() {
+        return mState == PilightState.Connecting
+                || mState == PilightState.HandshakePending
+                || mState == PilightState.ConfigRequested
+                || mState == PilightState.ValuesRequested;
     }
 
     public void connect() {
@@ -296,11 +697,15 @@ public class PilightServiceImpl extends Service implements PilightService, Setti
 
         mPilight.connect(getHostFromPreferences(), getPortFromPreferences());
         mState = PilightState.Connecting;
+
+        updateNodes();
     }
 
     public void disconnect() {
         log.info("disconnect request");
 
+        stopNodes();
+
         if (mState == PilightState.Disconnected) {
             log.info("- ignored, already disconnected");
             return;
@@ -310,108 +715,627 @@ public class PilightServiceImpl extends Service implements PilightService, Setti
         mPilight.disconnect();
     }
 
-    private String getHostFromPreferences() {
-        assert getApplication() != null;
-        return ((Illumina) getApplication())
-                .getSharedPreferences()
-                .getString(Illumina.PREF_HOST, "");
-    }
+    /**
+     * Closes the connection while no client is bound, saving the heartbeat's wakeups.
+     */
+    private void suspend() {
+        if (mState == PilightState.Disconnected || mState == PilightState.Error) {
+            return;
+        }
 
-    private int getPortFromPreferences() {
-        assert getApplication() != null;
-        return ((Illumina) getApplication())
-                .getSharedPreferences()
-                .getInt(Illumina.PREF_PORT, 0);
+        log.info("suspending the connection, no clients bound");
+
+        mIsSuspended = true;
+        mSuspendedAt = SystemClock.elapsedRealtime();
+        mCurrentlyTriesReconnecting = false;
+        mPilightHandler.removeCallbacks(mReconnect);
+        disconnect();
     }
 
-    public void sendDeviceChange(Device device, int changedProperty) {
-        try {
-            final JSONObject json = new JSONObject();
-            final JSONObject code = new JSONObject();
-            final JSONObject values = new JSONObject();
-            boolean putCodeValues = false;
+    /**
+     * Reconnects after a suspension, only fetching fresh values for the current setting.
+     */
+    private void resume() {
+        mIsSuspended = false;
 
-            json.put("message", "send");
-            json.put("code", code);
+        if (isConnecting()) {
+            log.info("- resume ignored, already connecting");
+            return;
+        }
 
-            code.put("location", device.getLocationId());
-            code.put("device", device.getId());
+        final long suspended = SystemClock.elapsedRealtime() - mSuspendedAt;
+        final long heartbeats = suspended / StreamingSocketImpl.HEARTBEAT_INTERVAL;
 
-            if (changedProperty == Device.Properties.DIMLEVEL.ordinal()) {
-                if(putCodeValues == false) {
-                    code.put("values", values);
-                    putCodeValues = true;
-                }
-                values.put("dimlevel", device.getDimLevel());
-            }
+        mSkippedHeartbeats += heartbeats;
 
-            if (device.getAll() == true) {
-                if(putCodeValues == false) {
-                    code.put("values", values);
-                    putCodeValues = true;
-                }
-                values.put("all", 1);
-            }
+        log.info("resuming after " + suspended / 1000 + "s suspended, " + heartbeats
+                + " heartbeats skipped, estimated " + heartbeats * HEARTBEAT_WAKEUPS
+                + " wakeups and " + heartbeats * HEARTBEAT_BYTES + " bytes saved ("
+                + mSkippedHeartbeats + " heartbeats in total)");
 
-            if (changedProperty == Device.Properties.UPDATE.ordinal()) {
-                if(putCodeValues == false) {
-                    code.put("values", values);
-                    putCodeValues = true;
-                }
-                values.put("update", 1);
-            }
+        mCurrentlyTriesReconnecting = mSetting != null;
+        connect();
+    }
+
+    private void onClientsChanged() {
+        mPilightHandler.post(mCheckIdle);
+    }
+
+    // ---- Additional nodes ----
 
-            if (changedProperty == Device.Properties.VALUE.ordinal()) {
-                code.put("state", device.getValue());
+    /**
+     * Connects to the configured additional daemons not connected yet and drops the ones
+     * no longer configured.
+     */
+    private void updateNodes() {
+        final List<String> endpoints = getNodesFromPreferences();
+
+        for (PilightNode node : mNodes) {
+            if (!endpoints.remove(node.getHost() + ":" + node.getPort())) {
+                log.info("node " + node.getHost() + ":" + node.getPort() + " removed");
+                node.stop();
+                mNodes.remove(node);
             }
+        }
 
-            sendSocketMessage(json);
+        for (String endpoint : endpoints) {
+            final int separator = endpoint.lastIndexOf(':');
 
-        } catch (JSONException exception) {
-            log.error("sending change failed with " + exception.getMessage());
+            try {
+                final PilightNode node = new PilightNode(endpoint.substring(0, separator),
+                        Integer.parseInt(endpoint.substring(separator + 1)), this);
+
+                mNodes.add(node);
+                node.start();
+
+            } catch (NumberFormatException | IndexOutOfBoundsException exception) {
+                log.warn("invalid node " + endpoint + " ignored");
+            }
         }
     }
 
-    // ------------------------------------------------------------------------
-    //
-    //      Lifecycle
-    //
-    // ------------------------------------------------------------------------
+    private void stopNodes() {
+        for (PilightNode node : mNodes) {
+            node.stop();
+        }
 
-    @Override
-    public int onStartCommand(Intent intent, int flags, int startId) {
-        // We want this service to continue running until it is explicitly
-        // stopped, so return sticky.
-        return Service.START_STICKY;
+        mNodes.clear();
     }
 
-    // ------------------------------------------------------------------------
-    //
-    //      Binding
-    //
-    // ------------------------------------------------------------------------
+    private PilightNode findNode(String locationId) {
+        for (PilightNode node : mNodes) {
+            if (node.owns(locationId)) {
+                return node;
+            }
+        }
 
-    /** Target we publish for clients to send messages to IncomingHandler. */
-    private final Messenger mMessenger = new Messenger(new IncomingHandler());
+        return null;
+    }
 
-    /** Keeps track of all current registered clients. */
-    private final ArrayList<Messenger> mClients = new ArrayList<>();
+    @Override
+    public void onNodeSettingChanged(PilightNode node) {
+        // clients rebuild their locations on a (re-)connect
+        if (isConnected()) {
+            sendBroadcast(News.CONNECTED);
+        }
+    }
 
-    /**
-     * Handler of incoming messages from clients.
-     */
-    class IncomingHandler extends Handler {
-        @Override
-        public void handleMessage(final Message msg) {
-            final Bundle data = msg.getData();
+    @Override
+    public void onNodeDeviceChange(PilightNode node, final Device device, final int reported) {
+        if (device.hasChanges(Device.CHANGES_SHOWN)) {
+            broadcastDeviceChange(device);
+        }
 
-            if (data != null) {
-                data.setClassLoader(Location.class.getClassLoader());
+        mPilightHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mPendingChanges.confirm(device, reported);
+                mSensorHistories.record(device, reported);
+            }
+        });
+    }
+
+    private File getSnapshotFile() {
+        return new File(getFilesDir(), SNAPSHOT_FILE_NAME);
+    }
+
+    /**
+     * Restores the last known setting of the configured endpoint, if the current one
+     * belongs to another endpoint or there is none yet.
+     */
+    private void restoreSetting() {
+        final String host = getHostFromPreferences();
+        final int port = getPortFromPreferences();
+
+        if (mSetting == null
+                || port != mPilight.getPort() || !TextUtils.equals(host, mPilight.getHost())) {
+            mSetting = SettingSnapshot.read(getSnapshotFile(), this, host, port);
+            log.info("snapshot " + (mSetting != null ? "restored" : "not available"));
+        }
+    }
+
+    private void saveSnapshot() {
+        mPilightHandler.removeCallbacks(mSaveSnapshot);
+
+        if (mSetting == null || mState != PilightState.Connected) {
+            return;
+        }
+
+        try {
+            SettingSnapshot.write(getSnapshotFile(), mSetting, mPilight.getHost(), mPilight.getPort());
+        } catch (IOException exception) {
+            log.warn("writing snapshot failed", exception);
+        }
+    }
+
+    private String getHostFromPreferences() {
+        assert getApplication() != null;
+        return ((Illumina) getApplication())
+                .getSharedPreferences()
+                .getString(Illumina.PREF_HOST, "");
+    }
+
+    private void onConnectRequest() {
+        if (isConnected()) {
+            sendBroadcast(News.CONNECTED);
+            return;
+        }
+
+        final boolean isSameEndpoint = isEndpointUnchanged();
+
+        if (isSameEndpoint && isConnecting()) {
+            // a resume or reconnect is under way, it keeps its values resync
+            log.info("connect request, already connecting");
+            mIsSuspended = false;
+
+        } else if (isSameEndpoint && mIsSuspended) {
+            resume();
+
+        } else {
+            mIsSuspended = false;
+            mPilightHandler.removeCallbacks(mReconnect);
+
+            // a pending reconnect to the same endpoint still only needs fresh values
+            mCurrentlyTriesReconnecting = isSameEndpoint && mCurrentlyTriesReconnecting;
+            restoreSetting();
+            connect();
+        }
+
+        if (mSetting != null) {
+            sendBroadcast(News.CONNECTING);
+        }
+    }
+
+    /** Answers requests for the setting when there is none (issue #34) */
+    private void onMissingSetting() {
+        mPilightHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                sendBroadcast(News.ERROR, Error.HANDSHAKE_FAILED);
+                mState = PilightState.Disconnected;
+            }
+        });
+    }
+
+    private int getPortFromPreferences() {
+        assert getApplication() != null;
+        return ((Illumina) getApplication())
+                .getSharedPreferences()
+                .getInt(Illumina.PREF_PORT, 0);
+    }
+
+    /**
+     * Returns the "host:port" endpoints of the additional daemons, without duplicates
+     * and without the main endpoint.
+     */
+    private List<String> getNodesFromPreferences() {
+        assert getApplication() != null;
+        final String nodes = ((Illumina) getApplication())
+                .getSharedPreferences()
+                .getString(Illumina.PREF_NODES, "");
+
+        final String mainEndpoint = getHostFromPreferences() + ":" + getPortFromPreferences();
+        final List<String> endpoints = new ArrayList<>();
+
+        for (String endpoint : TextUtils.split(nodes, ",")) {
+            endpoint = endpoint.trim();
+
+            if (!TextUtils.isEmpty(endpoint) && !endpoints.contains(endpoint)
+                    && !TextUtils.equals(endpoint, mainEndpoint)) {
+                endpoints.add(endpoint);
+            }
+        }
+
+        return endpoints;
+    }
+
+    private int getIdleTimeoutFromPreferences() {
+        assert getApplication() != null;
+        final String idleTimeout = ((Illumina) getApplication())
+                .getSharedPreferences()
+                .getString(Illumina.PREF_IDLE_TIMEOUT, Illumina.DEFAULT_IDLE_TIMEOUT);
+
+        try {
+            return Integer.parseInt(idleTimeout);
+        } catch (NumberFormatException exception) {
+            log.warn("invalid idle timeout " + idleTimeout);
+            return 0;
+        }
+    }
+
+    private boolean getPipelinedHandshakeFromPreferences() {
+        assert getApplication() != null;
+        return ((Illumina) getApplication())
+                .getSharedPreferences()
+                .getBoolean(Illumina.PREF_PIPELINED_HANDSHAKE, false);
+    }
+
+    /**
+     * Returns whether the change was sent, or is about to be sent, and awaits confirmation.
+     */
+    private boolean onDeviceChangeRequest(Device device, int changedProperty) {
+        final PilightNode node = findNode(device.getLocationId());
+
+        if (node != null) {
+            // settled by the node's updates, it shows nothing before they arrive
+            mPendingChanges.add(device, changedProperty, device.getValue(),
+                    device.getDimLevel(), 0);
+            node.send(device, changedProperty);
+            return true;
+        }
+
+        final Setting setting = mSetting;
+        final Device current = findDevice(setting, device.getLocationId(), device.getId());
+        final boolean isConnected = mState == PilightState.Connected;
+        long sendDelay = 0;
+
+        if (!isConnected) {
+            queueDeviceChange(device, changedProperty);
+
+        } else if (current != null) {
+            sendDelay = mRateLimiter.schedule(current, device, changedProperty);
+
+            if (sendDelay == DeviceRateLimiter.DROPPED) {
+                mPendingChanges.addThrottled(current);
+                return false;
+            } else if (sendDelay > 0) {
+                mPendingChanges.addThrottled(current);
+            }
+
+            mPendingChanges.add(current, changedProperty, device.getValue(), device.getDimLevel(),
+                    sendDelay);
+        }
+
+        if (current != null && changedProperty != Device.Properties.UPDATE.ordinal()) {
+            applyOptimistically(setting, current, device, changedProperty);
+        }
+
+        if (isConnected && sendDelay == 0) {
+            sendDeviceChange(device, changedProperty);
+        }
+
+        return isConnected && current != null;
+    }
+
+    private void onSceneRequest(PendingScene scene) {
+        log.info("scene " + scene.mSceneId + " with " + scene.size() + " changes requested");
+
+        mBatch = new StringBuilder();
+
+        for (int i = 0; i < scene.size(); i++) {
+            if (!onDeviceChangeRequest(scene.getDevice(i), scene.getProperty(i))) {
+                scene.settle(i, false);
+            }
+        }
+
+        final String burst = mBatch.toString();
+        mBatch = null;
+
+        if (burst.length() > 0) {
+            log.debug("sending " + burst);
+            mPilight.send(burst);
+        }
+
+        if (scene.isComplete()) {
+            sendSceneResult(scene);
+        } else {
+            mPendingScenes.add(scene);
+        }
+    }
+
+    @Override
+    public void onSettled(String locationId, String deviceId, int property, boolean isConfirmed) {
+        for (Iterator<PendingScene> iterator = mPendingScenes.iterator(); iterator.hasNext(); ) {
+            final PendingScene scene = iterator.next();
+            scene.settle(locationId, deviceId, property, isConfirmed);
+
+            if (scene.isComplete()) {
+                iterator.remove();
+                sendSceneResult(scene);
+            }
+        }
+    }
+
+    @Override
+    public void onSendDeferred(Device device, int changedProperty) {
+        if (mState == PilightState.Connected) {
+            sendDeviceChange(device, changedProperty);
+        } else {
+            queueDeviceChange(device, changedProperty);
+        }
+    }
+
+    private void queueDeviceChange(Device device, int changedProperty) {
+        // replayed once the handshake completed
+        mJournal.add(getHostFromPreferences(), getPortFromPreferences(), device, changedProperty);
+        log.info("not connected, command for " + device.getId() + " queued");
+    }
+
+    /**
+     * Shows the requested value or dim level to all clients before pilight confirms it.
+     */
+    private void applyOptimistically(Setting setting, Device current, Device device,
+                                     int changedProperty) {
+        synchronized (setting) {
+            current.clearChanges();
+
+            if (changedProperty == Device.Properties.DIMLEVEL.ordinal()) {
+                current.setDimLevel(device.getDimLevel());
+            } else {
+                current.setValue(device.getValue());
+            }
+
+            if (current.hasChanges(Device.CHANGES_SHOWN)) {
+                broadcastDeviceChange(current);
+            }
+        }
+    }
+
+    public void sendDeviceChange(Device device, int changedProperty) {
+        final String message = mCommandEncoder.encode(device, changedProperty);
+
+        if (mBatch != null) {
+            // one write for the whole scene, pilight reads messages line by line
+            if (mBatch.length() > 0) {
+                mBatch.append('\n');
+            }
+
+            mBatch.append(message);
+            return;
+        }
+
+        log.debug("sending " + message);
+        mPilight.send(message);
+    }
+
+    // ------------------------------------------------------------------------
+    //
+    //      Lifecycle
+    //
+    // ------------------------------------------------------------------------
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        mProtocolThread.start();
+        mPilightHandler = new PilightHandler(mProtocolThread.getLooper());
+        mPilight = new StreamingSocketImpl(mPilightHandler);
+        mPendingChanges = new PendingDeviceChanges(mPilightHandler, this);
+        mRateLimiter = new DeviceRateLimiter(mPilightHandler, this);
+
+        mHistoryLog = new HistoryLog(new File(getFilesDir(), HISTORY_DIRECTORY_NAME));
+        mHistoryLog.start();
+        mSensorHistories = new SensorHistories(mHistoryLog);
+        restoreSensorHistories();
+
+        mPilightHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mJournal = new CommandJournal(new File(getFilesDir(), JOURNAL_FILE_NAME),
+                        mPilightHandler);
+            }
+        });
+    }
+
+    @Override
+    public void onDestroy() {
+        mPilightHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                disconnect();
+                mJournal.flush();
+
+                // after the last reading was recorded on this thread
+                mHistoryLog.stop();
+                Looper.myLooper().quit();
+            }
+        });
+
+        super.onDestroy();
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // We want this service to continue running until it is explicitly
+        // stopped, so return sticky.
+        return Service.START_STICKY;
+    }
+
+    // ------------------------------------------------------------------------
+    //
+    //      Binding
+    //
+    // ------------------------------------------------------------------------
+
+    /** Handles the requests of remote as well as in-process clients. */
+    private final IncomingHandler mIncomingHandler = new IncomingHandler();
+
+    /** Target we publish for clients to send messages to IncomingHandler. */
+    private final Messenger mMessenger = new Messenger(mIncomingHandler);
+
+    /** Keeps track of all current registered clients. */
+    private final CopyOnWriteArrayList<Messenger> mClients = new CopyOnWriteArrayList<>();
+
+    /** Keeps track of all clients bound from within the service's process. */
+    private final CopyOnWriteArrayList<PilightBinder.ServiceListener> mLocalClients =
+            new CopyOnWriteArrayList<>();
+
+    /**
+     * Returns the service component to start and bind. With {@link BuildConfig#IN_PROCESS_SERVICE}
+     * the service runs in the application process and skips the message marshalling.
+     */
+    public static Class<? extends PilightServiceImpl> getServiceClass() {
+        return BuildConfig.IN_PROCESS_SERVICE
+                ? LocalPilightServiceImpl.class : PilightServiceImpl.class;
+    }
+
+    /**
+     * Binder handed out to clients living in the service's process. News and responses
+     * are passed to the client's listener as they are, nothing is parcelled.
+     */
+    public class LocalBinder extends Binder {
+
+        void register(PilightBinder.ServiceListener listener) {
+            mLocalClients.addIfAbsent(listener);
+            onClientsChanged();
+        }
+
+        void unregister(PilightBinder.ServiceListener listener) {
+            mLocalClients.remove(listener);
+            onClientsChanged();
+        }
+
+        /** Requests are queued, so responses never arrive while the client is still sending. */
+        void send(final Message message, final PilightBinder.ServiceListener replyTo) {
+            mIncomingHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleLocalRequest(message, replyTo);
+                }
+            });
+        }
+
+    }
+
+    private void handleLocalRequest(Message msg, final PilightBinder.ServiceListener replyTo) {
+        switch (msg.what) {
+            case Request.REGISTER:
+            case Request.UNREGISTER:
+                // handled by LocalBinder
+                break;
+
+            case Request.STATE:
+                notifyLocalClient(replyTo, getStateNews(), 0);
+                break;
+
+            case Request.LOCATION_LIST:
+                final Setting setting = mSetting;
+
+                if (setting == null) {
+                    onMissingSetting();
+                } else {
+                    replyTo.onLocationListResponse(copyLocationList(setting));
+                }
+                break;
+
+            case Request.LOCATION:
+                assert msg.getData() != null;
+                replyTo.onLocationResponse(
+                        copyLocation(mSetting, msg.getData().getString(Extra.LOCATION_ID)));
+                break;
+
+            case Request.SCENE:
+                final PendingScene localScene = createScene(msg);
+
+                if (localScene != null) {
+                    localScene.mLocalReplyTo = replyTo;
+                    postSceneRequest(localScene);
+                }
+                break;
+
+            case Request.COMMAND_STATS:
+                mPilightHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        final ArrayList<CommandLatencyHistogram> histograms
+                                = mPendingChanges.getHistograms();
+                        final long staleUpdates = getStaleUpdateCount();
+
+                        mIncomingHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                replyTo.onCommandStatsResponse(histograms, staleUpdates);
+                            }
+                        });
+                    }
+                });
+                break;
+
+            case Request.SENSOR_HISTORY:
+                assert msg.getData() != null;
+                final String locationId = msg.getData().getString(Extra.LOCATION_ID);
+                final String deviceId = msg.getData().getString(Extra.DEVICE_ID);
+                final int sensor = msg.arg1;
+
+                mPilightHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        final SensorHistory history
+                                = mSensorHistories.get(locationId, deviceId, sensor);
+
+                        mIncomingHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                replyTo.onSensorHistoryResponse(history);
+                            }
+                        });
+                    }
+                });
+                break;
+
+            case Request.SENSOR_STATISTICS:
+                assert msg.getData() != null;
+                final String statisticsLocationId = msg.getData().getString(Extra.LOCATION_ID);
+
+                mPilightHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        final ArrayList<SensorStatistics> statistics
+                                = mSensorHistories.getStatistics(statisticsLocationId);
+
+                        mIncomingHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                replyTo.onSensorStatisticsResponse(statistics);
+                            }
+                        });
+                    }
+                });
+                break;
+
+            default:
+                mIncomingHandler.handleMessage(msg);
+                break;
+        }
+    }
+
+    /**
+     * Handler of incoming messages from clients.
+     */
+    class IncomingHandler extends Handler {
+        @Override
+        public void handleMessage(final Message msg) {
+            final Bundle data = msg.getData();
+
+            if (data != null) {
+                data.setClassLoader(Location.class.getClassLoader());
             }
 
             switch (msg.what) {
                 case Request.REGISTER:
                     mClients.add(msg.replyTo);
+                    onClientsChanged();
                     break;
 
                 case Request.STATE:
@@ -421,44 +1345,101 @@ public class PilightServiceImpl extends Service implements PilightService, Setti
                 case Request.UNREGISTER:
                     if (mClients.contains(msg.replyTo)) { // FIXME dirty hack! (see #36)
                         mClients.remove(msg.replyTo);
+                        onClientsChanged();
                     }
                     break;
 
                 case Request.PILIGHT_CONNECT:
-                    if (!isConnected()) {
-                        mCurrentlyTriesReconnecting = false;
-                        connect();
-                    } else {
-                        sendBroadcast(News.CONNECTED);
-                    }
+                    mPilightHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onConnectRequest();
+                        }
+                    });
                     break;
 
                 case Request.PILIGHT_DISCONNECT:
-                    disconnect();
+                    mPilightHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            disconnect();
+                        }
+                    });
                     break;
 
                 case Request.LOCATION_LIST:
-                    if (!mClients.contains(msg.replyTo)) { // FIXME dirty hack! (see #36)
-                        mClients.add(msg.replyTo);
-                    }
-
-                    sendLocationList(mClients.get(mClients.indexOf(msg.replyTo)));
+                    mClients.addIfAbsent(msg.replyTo); // FIXME dirty hack! (see #36)
+                    sendLocationList(msg.replyTo);
                     break;
 
                 case Request.LOCATION:
-                    if (!mClients.contains(msg.replyTo)) { // FIXME dirty hack! (see #36)
-                        mClients.add(msg.replyTo);
-                    }
+                    mClients.addIfAbsent(msg.replyTo); // FIXME dirty hack! (see #36)
 
                     assert data != null;
-                    sendLocation(data.getString(Extra.LOCATION_ID),
-                            mClients.get(mClients.indexOf(msg.replyTo)));
+                    sendLocation(data.getString(Extra.LOCATION_ID), msg.replyTo);
                     break;
 
                 case Request.DEVICE_CHANGE:
                     assert data != null;
-                    sendDeviceChange((Device) data.getParcelable(Extra.DEVICE),
-                            data.getInt(Extra.CHANGED_PROPERTY));
+                    final Device device = data.getParcelable(Extra.DEVICE);
+                    final int changedProperty = data.getInt(Extra.CHANGED_PROPERTY);
+
+                    mPilightHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onDeviceChangeRequest(device, changedProperty);
+                        }
+                    });
+                    break;
+
+                case Request.SCENE:
+                    final PendingScene scene = createScene(msg);
+
+                    if (scene != null) {
+                        scene.mReplyTo = msg.replyTo;
+                        postSceneRequest(scene);
+                    }
+                    break;
+
+                case Request.COMMAND_STATS:
+                    final Messenger replyTo = msg.replyTo;
+
+                    mPilightHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            sendCommandStats(replyTo);
+                        }
+                    });
+                    break;
+
+                case Request.SENSOR_HISTORY:
+                    assert data != null;
+                    final Messenger historyReceiver = msg.replyTo;
+                    final String locationId = data.getString(Extra.LOCATION_ID);
+                    final String deviceId = data.getString(Extra.DEVICE_ID);
+                    final int sensor = msg.arg1;
+
+                    mPilightHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            sendSensorHistory(historyReceiver,
+                                    mSensorHistories.get(locationId, deviceId, sensor));
+                        }
+                    });
+                    break;
+
+                case Request.SENSOR_STATISTICS:
+                    assert data != null;
+                    final Messenger statisticsReceiver = msg.replyTo;
+                    final String statisticsLocationId = data.getString(Extra.LOCATION_ID);
+
+                    mPilightHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            sendSensorStatistics(statisticsReceiver,
+                                    mSensorHistories.getStatistics(statisticsLocationId));
+                        }
+                    });
                     break;
 
                 default:
@@ -467,23 +1448,88 @@ public class PilightServiceImpl extends Service implements PilightService, Setti
         }
     }
 
+    private int getStateNews() {
+        if (isConnected()) {
+            return News.CONNECTED;
+        } else if ((isConnecting() || mIsSuspended) && mSetting != null) {
+            mIsConnectingAnnounced = true;
+            return News.CONNECTING;
+        } else {
+            return News.DISCONNECTED;
+        }
+    }
+
     private void sendState(Messenger receiver) {
         try {
-            if (isConnected()) {
-                receiver.send(Message.obtain(null, News.CONNECTED));
-            } else {
-                receiver.send(Message.obtain(null, News.DISCONNECTED));
-            }
+            receiver.send(Message.obtain(null, getStateNews()));
         } catch (RemoteException exception) {
             log.error("sending disconnected state failed", exception);
         }
     }
 
-    private void sendLocation(String locationId, Messenger receiver) {
-        final Message message = Message.obtain(null, News.LOCATION);
+    private PendingScene createScene(Message msg) {
+        final Bundle data = msg.getData();
+        assert data != null;
+
+        data.setClassLoader(Location.class.getClassLoader());
+
+        final ArrayList<Device> devices = data.getParcelableArrayList(Extra.DEVICE_LIST);
+        final int[] properties = data.getIntArray(Extra.CHANGED_PROPERTIES);
+
+        if (devices == null || properties == null || devices.size() != properties.length) {
+            log.warn("scene " + msg.arg1 + " ignored, devices and properties do not match");
+            return null;
+        }
+
+        return new PendingScene(msg.arg1, devices, properties);
+    }
+
+    private void postSceneRequest(final PendingScene scene) {
+        mPilightHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                onSceneRequest(scene);
+            }
+        });
+    }
+
+    private void sendSceneResult(PendingScene scene) {
+        final int sceneId = scene.mSceneId;
+        final boolean[] confirmed = scene.getConfirmed();
+
+        if (scene.mLocalReplyTo != null) {
+            final PilightBinder.ServiceListener listener = scene.mLocalReplyTo;
+
+            mIncomingHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onSceneResponse(sceneId, confirmed);
+                }
+            });
+
+        } else if (scene.mReplyTo != null) {
+            final Message message = Message.obtain(null, News.SCENE, sceneId, 0);
+            final Bundle data = new Bundle();
+
+            data.putBooleanArray(Extra.CONFIRMED, confirmed);
+
+            assert message != null;
+            message.setData(data);
+
+            try {
+                scene.mReplyTo.send(message);
+            } catch (RemoteException exception) {
+                log.error("sending scene result failed", exception);
+            }
+        }
+    }
+
+    private void sendCommandStats(Messenger receiver) {
+        final Message message = Message.obtain(null, News.COMMAND_STATS);
         final Bundle data = new Bundle();
 
-        data.putParcelable(Extra.LOCATION, mSetting.get(locationId));
+        data.putParcelableArrayList(Extra.COMMAND_STATS, mPendingChanges.getHistograms());
+        data.putLong(Extra.STALE_UPDATES, getStaleUpdateCount());
 
         assert message != null;
         message.setData(data);
@@ -491,23 +1537,108 @@ public class PilightServiceImpl extends Service implements PilightService, Setti
         try {
             receiver.send(message);
         } catch (RemoteException exception) {
-            log.error("sending location failed", exception);
+            log.error("sending command stats failed", exception);
         }
     }
 
-    private void sendLocationList(Messenger receiver) {
-        // fix due to issue #34
-        if (mSetting == null) {
-            sendBroadcast(News.ERROR, Error.HANDSHAKE_FAILED);
-            mState = PilightState.Disconnected;
-            return;
+    private void sendSensorStatistics(Messenger receiver,
+                                      ArrayList<SensorStatistics> statistics) {
+        final Message message = Message.obtain(null, News.SENSOR_STATISTICS);
+        final Bundle data = new Bundle();
+
+        data.putParcelableArrayList(Extra.SENSOR_STATISTICS, statistics);
+
+        assert message != null;
+        message.setData(data);
+
+        try {
+            receiver.send(message);
+        } catch (RemoteException exception) {
+            log.error("sending sensor statistics failed", exception);
         }
+    }
 
-        final Message message = Message.obtain(null, News.LOCATION_LIST);
+    /**
+     * Fills the sensor histories with the raw readings kept in the history log, and the
+     * statistics of the windows still open with the records of today in all its tiers.
+     */
+    private void restoreSensorHistories() {
+        final long dayStart = SensorStatistics.getWindowStart(
+                SensorStatistics.WINDOW_DAY, System.currentTimeMillis());
+
+        // filled on the history thread, the queries run one after the other
+        final Map<Integer, SensorStatistics> statistics = new HashMap<>();
+
+        final HistoryLog.RangeCallback aggregateCallback = new HistoryLog.RangeCallback() {
+            @Override
+            public void onRange(HistoryLog.Cursor cursor) {
+                while (cursor.next()) {
+                    getRestoredStatistics(statistics, cursor).addAggregate(cursor.getTimestamp(),
+                            cursor.getCount(), cursor.getMin(), cursor.getMax(), cursor.getSum());
+                }
+            }
+        };
+
+        // the older the records the coarser their tier, days are bucketed by local day
+        // like the statistics, so the buckets starting today hold nothing but today
+        mHistoryLog.query(HistoryLog.TIER_DAY, dayStart, Long.MAX_VALUE, aggregateCallback);
+        mHistoryLog.query(HistoryLog.TIER_HOUR, dayStart, Long.MAX_VALUE, aggregateCallback);
+        mHistoryLog.query(HistoryLog.TIER_MINUTE, dayStart, Long.MAX_VALUE, aggregateCallback);
+
+        mHistoryLog.query(HistoryLog.TIER_RAW, 0, Long.MAX_VALUE, new HistoryLog.RangeCallback() {
+            @Override
+            public void onRange(HistoryLog.Cursor cursor) {
+                final Map<Integer, SensorHistory> histories = new HashMap<>();
+
+                while (cursor.next()) {
+                    SensorHistory history = histories.get(cursor.getSeries());
+
+                    if (history == null) {
+                        history = new SensorHistory(cursor.getLocationId(),
+                                cursor.getDeviceId(), cursor.getSensor(),
+                                SensorHistories.CAPACITY);
+                        histories.put(cursor.getSeries(), history);
+                    }
+
+                    history.add(cursor.getTimestamp(), cursor.getMin());
+
+                    if (cursor.getTimestamp() >= dayStart) {
+                        getRestoredStatistics(statistics, cursor)
+                                .add(cursor.getTimestamp(), cursor.getMin());
+                    }
+                }
+
+                log.info("restored the history of " + histories.size() + " sensors, "
+                        + "the statistics of " + statistics.size());
+
+                mPilightHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mSensorHistories.restore(histories.values(), statistics.values());
+                    }
+                });
+            }
+        });
+    }
+
+    private static SensorStatistics getRestoredStatistics(
+            Map<Integer, SensorStatistics> statistics, HistoryLog.Cursor cursor) {
+        SensorStatistics sensorStatistics = statistics.get(cursor.getSeries());
+
+        if (sensorStatistics == null) {
+            sensorStatistics = new SensorStatistics(cursor.getLocationId(),
+                    cursor.getDeviceId(), cursor.getSensor());
+            statistics.put(cursor.getSeries(), sensorStatistics);
+        }
+
+        return sensorStatistics;
+    }
+
+    private void sendSensorHistory(Messenger receiver, SensorHistory history) {
+        final Message message = Message.obtain(null, News.SENSOR_HISTORY);
         final Bundle data = new Bundle();
 
-        data.putParcelableArrayList(Extra.LOCATION_LIST,
-                new ArrayList<>(mSetting.values()));
+        data.putParcelable(Extra.SENSOR_HISTORY, history);
 
         assert message != null;
         message.setData(data);
@@ -515,7 +1646,94 @@ public class PilightServiceImpl extends Service implements PilightService, Setti
         try {
             receiver.send(message);
         } catch (RemoteException exception) {
-            log.error("sending location list failed", exception);
+            log.error("sending sensor history failed", exception);
+        }
+    }
+
+    /**
+     * Returns the locations of the setting followed by the ones of all additional nodes.
+     */
+    private ArrayList<Location> getLocationList(Setting setting) {
+        final ArrayList<Location> locations = new ArrayList<>(setting.values());
+
+        for (PilightNode node : mNodes) {
+            locations.addAll(node.getLocations());
+        }
+
+        return locations;
+    }
+
+    private Location getLocation(Setting setting, String locationId) {
+        final PilightNode node = findNode(locationId);
+        return node != null ? node.getLocation(locationId) : setting.get(locationId);
+    }
+
+    /**
+     * Returns copies of the locations for in-process clients, the protocol thread keeps
+     * changing the originals.
+     */
+    private ArrayList<Location> copyLocationList(Setting setting) {
+        synchronized (setting) {
+            final ArrayList<Location> locations = getLocationList(setting);
+
+            for (int i = 0; i < locations.size(); i++) {
+                locations.set(i, new Location(locations.get(i)));
+            }
+
+            return locations;
+        }
+    }
+
+    private Location copyLocation(Setting setting, String locationId) {
+        synchronized (setting) {
+            final Location location = getLocation(setting, locationId);
+            return location != null ? new Location(location) : null;
+        }
+    }
+
+    private void sendLocation(String locationId, Messenger receiver) {
+        final Setting setting = mSetting;
+        final Message message = Message.obtain(null, News.LOCATION);
+        final Bundle data = new Bundle();
+
+        data.putParcelable(Extra.LOCATION, getLocation(setting, locationId));
+
+        assert message != null;
+        message.setData(data);
+
+        // the location is parcelled while sending
+        synchronized (setting) {
+            try {
+                receiver.send(message);
+            } catch (RemoteException exception) {
+                log.error("sending location failed", exception);
+            }
+        }
+    }
+
+    private void sendLocationList(Messenger receiver) {
+        final Setting setting = mSetting;
+
+        if (setting == null) {
+            onMissingSetting();
+            return;
+        }
+
+        final Message message = Message.obtain(null, News.LOCATION_LIST);
+        final Bundle data = new Bundle();
+
+        data.putParcelableArrayList(Extra.LOCATION_LIST, getLocationList(setting));
+
+        assert message != null;
+        message.setData(data);
+
+        // the locations are parcelled while sending
+        synchronized (setting) {
+            try {
+                receiver.send(message);
+            } catch (RemoteException exception) {
+                log.error("sending location list failed", exception);
+            }
         }
     }
 
@@ -531,7 +1749,24 @@ public class PilightServiceImpl extends Service implements PilightService, Setti
         sendBroadcast(what, data, 0);
     }
 
-    private void sendBroadcast(final int what, Bundle data, int arg1) {
+    private void sendBroadcast(final int what, Bundle data, final int arg1) {
+        if (what == News.CONNECTING) {
+            mIsConnectingAnnounced = true;
+        } else if (what == News.CONNECTED || what == News.DISCONNECTED) {
+            mIsConnectingAnnounced = false;
+        }
+
+        if (!mLocalClients.isEmpty()) {
+            mIncomingHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (PilightBinder.ServiceListener listener : mLocalClients) {
+                        notifyLocalClient(listener, what, arg1);
+                    }
+                }
+            });
+        }
+
         final ArrayList<Messenger> deadClients = new ArrayList<>();
 
         for (Messenger client : mClients) {
@@ -544,14 +1779,39 @@ public class PilightServiceImpl extends Service implements PilightService, Setti
             try {
                 client.send(message);
             } catch (RemoteException e) {
-                // The client is dead.  Remove it from the list;
-                // we are going through the list from back to front
-                // so this is safe to do inside the loop.
+                // The client is dead, remove it after the loop.
                 deadClients.add(client);
             }
         }
 
-        mClients.removeAll(deadClients);
+        if (!deadClients.isEmpty()) {
+            mClients.removeAll(deadClients);
+            onClientsChanged();
+        }
+    }
+
+    private void notifyLocalClient(PilightBinder.ServiceListener listener, int what, int arg1) {
+        switch (what) {
+            case News.CONNECTED:
+                listener.onPilightConnected();
+                break;
+
+            case News.CONNECTING:
+                listener.onPilightConnecting();
+                break;
+
+            case News.DISCONNECTED:
+                listener.onPilightDisconnected();
+                break;
+
+            case News.ERROR:
+                listener.onPilightError(arg1);
+                break;
+
+            default:
+                // news carrying data are handed over typed by their senders
+                break;
+        }
     }
 
     @Override
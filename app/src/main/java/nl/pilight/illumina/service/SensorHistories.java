@@ -0,0 +1,213 @@
+/*
+ * illumina, a pilight remote
+ *
+ * Copyright (c) 2014 Peter Heisig <http://google.com/+PeterHeisig>
+ *
+ * illumina is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * illumina is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with illumina. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package nl.pilight.illumina.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import nl.pilight.illumina.pilight.Device;
+
+/**
+ * The sensor histories and running statistics of all devices, filled from the updates
+ * pilight sends. Each reading is appended to the history log as well, which restores the
+ * histories after a restart.
+ *
+ * Must be used on the protocol thread.
+ */
+class SensorHistories {
+
+    /** Readings kept per sensor, a day of readings every five minutes */
+    public static final int CAPACITY = 288;
+
+    private final Map<String, SensorHistory[]> mHistories = new HashMap<>();
+
+    private final Map<String, SensorStatistics[]> mStatistics = new HashMap<>();
+
+    private final HistoryLog mLog;
+
+    SensorHistories(HistoryLog log) {
+        mLog = log;
+    }
+
+    private static String getKey(String locationId, String deviceId) {
+        return locationId + '/' + deviceId;
+    }
+
+    /**
+     * Records the sensor values pilight reported with the last update of the device, also
+     * the ones repeating the previous value.
+     *
+     * @param reported the Device.CHANGED_ bits of the attributes pilight reported
+     */
+    void record(Device device, int reported) {
+        if ((reported & (Device.CHANGED_TEMPERATURE | Device.CHANGED_HUMIDITY
+                | Device.CHANGED_BATTERY)) == 0) {
+            return;
+        }
+
+        // pilight's timestamps are seconds, devices without one are stamped on arrival
+        final long timestamp = device.getTimestamp() > 0
+                ? device.getTimestamp() * 1000L : System.currentTimeMillis();
+
+        if ((reported & Device.CHANGED_TEMPERATURE) != 0 && device.hasTemperatureValue()) {
+            add(device, SensorHistory.SENSOR_TEMPERATURE, timestamp, device.getTemperature());
+        }
+
+        if ((reported & Device.CHANGED_HUMIDITY) != 0 && device.hasHumidityValue()) {
+            add(device, SensorHistory.SENSOR_HUMIDITY, timestamp, device.getHumidity());
+        }
+
+        if ((reported & Device.CHANGED_BATTERY) != 0 && device.hasBatteryValue()) {
+            add(device, SensorHistory.SENSOR_BATTERY, timestamp,
+                    device.hasHealthyBattery() ? 1 : 0);
+        }
+    }
+
+    private void add(Device device, int sensor, long timestamp, int value) {
+        getHistory(device.getLocationId(), device.getId(), sensor).add(timestamp, value);
+        getSensorStatistics(device.getLocationId(), device.getId(), sensor)
+                .add(timestamp, value);
+
+        if (mLog != null) {
+            mLog.append(device.getLocationId(), device.getId(), sensor, timestamp, value);
+        }
+    }
+
+    private SensorHistory[] getHistories(String locationId, String deviceId) {
+        final String key = getKey(locationId, deviceId);
+        SensorHistory[] histories = mHistories.get(key);
+
+        if (histories == null) {
+            histories = new SensorHistory[SensorHistory.SENSOR_COUNT];
+            mHistories.put(key, histories);
+        }
+
+        return histories;
+    }
+
+    private SensorHistory getHistory(String locationId, String deviceId, int sensor) {
+        final SensorHistory[] histories = getHistories(locationId, deviceId);
+
+        if (histories[sensor] == null) {
+            histories[sensor] = new SensorHistory(locationId, deviceId, sensor, CAPACITY);
+        }
+
+        return histories[sensor];
+    }
+
+    private SensorStatistics[] getDeviceStatistics(String locationId, String deviceId) {
+        final String key = getKey(locationId, deviceId);
+        SensorStatistics[] statistics = mStatistics.get(key);
+
+        if (statistics == null) {
+            statistics = new SensorStatistics[SensorHistory.SENSOR_COUNT];
+            mStatistics.put(key, statistics);
+        }
+
+        return statistics;
+    }
+
+    private SensorStatistics getSensorStatistics(String locationId, String deviceId, int sensor) {
+        final SensorStatistics[] statistics = getDeviceStatistics(locationId, deviceId);
+
+        if (statistics[sensor] == null) {
+            statistics[sensor] = new SensorStatistics(locationId, deviceId, sensor);
+        }
+
+        return statistics[sensor];
+    }
+
+    /**
+     * Takes over histories and statistics read from the log, followed by the readings
+     * recorded since.
+     */
+    void restore(Collection<SensorHistory> restoredHistories,
+            Collection<SensorStatistics> restoredStatistics) {
+        for (SensorHistory restored : restoredHistories) {
+            final SensorHistory[] histories = getHistories(
+                    restored.getLocationId(), restored.getDeviceId());
+            final SensorHistory current = histories[restored.getSensor()];
+            final long restoredUntil = restored.size() > 0
+                    ? restored.getTimestamp(restored.size() - 1) : Long.MIN_VALUE;
+
+            if (current != null) {
+                for (int i = 0; i < current.size(); i++) {
+                    if (current.getTimestamp(i) > restoredUntil) {
+                        restored.add(current.getTimestamp(i), current.getValue(i));
+                    }
+                }
+            }
+
+            histories[restored.getSensor()] = restored;
+        }
+
+        for (SensorStatistics restored : restoredStatistics) {
+            final SensorHistory history = getHistories(
+                    restored.getLocationId(), restored.getDeviceId())[restored.getSensor()];
+
+            if (history != null) {
+                for (int i = 0; i < history.size(); i++) {
+                    if (history.getTimestamp(i) > restored.getLastTimestamp()) {
+                        restored.add(history.getTimestamp(i), history.getValue(i));
+                    }
+                }
+            }
+
+            getDeviceStatistics(restored.getLocationId(), restored.getDeviceId())
+                    [restored.getSensor()] = restored;
+        }
+    }
+
+    /**
+     * Returns copies of the statistics of all sensors in the location.
+     */
+    ArrayList<SensorStatistics> getStatistics(String locationId) {
+        final ArrayList<SensorStatistics> result = new ArrayList<>();
+
+        for (SensorStatistics[] statistics : mStatistics.values()) {
+            for (SensorStatistics sensorStatistics : statistics) {
+                if (sensorStatistics != null
+                        && locationId.equals(sensorStatistics.getLocationId())) {
+                    result.add(new SensorStatistics(sensorStatistics));
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns a copy of the history of the sensor, empty if nothing was recorded yet.
+     */
+    SensorHistory get(String locationId, String deviceId, int sensor) {
+        final SensorHistory[] histories = mHistories.get(getKey(locationId, deviceId));
+
+        if (histories == null || sensor < 0 || sensor >= histories.length
+                || histories[sensor] == null) {
+            return new SensorHistory(locationId, deviceId, sensor, 0);
+        }
+
+        return new SensorHistory(histories[sensor]);
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * illumina, a pilight remote
+ *
+ * Copyright (c) 2014 Peter Heisig <http://google.com/+PeterHeisig>
+ *
+ * illumina is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * illumina is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with illumina. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package nl.pilight.illumina.service;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * The last readings of one sensor of a device, kept in a ring buffer of parallel primitive
+ * arrays. Values are fixed point like the ones of the device, battery readings are 1 for a
+ * healthy and 0 for an empty battery. A reading is recorded whenever pilight reports a
+ * changed value, so each value holds until the next one.
+ */
+public class SensorHistory implements Parcelable {
+
+    public static final int SENSOR_TEMPERATURE = 0;
+    public static final int SENSOR_HUMIDITY = 1;
+    public static final int SENSOR_BATTERY = 2;
+
+    static final int SENSOR_COUNT = 3;
+
+    private final String mLocationId;
+
+    private final String mDeviceId;
+
+    private final int mSensor;
+
+    /** Milliseconds since the epoch */
+    private final long[] mTimestamps;
+
+    private final int[] mValues;
+
+    /** Index of the oldest reading */
+    private int mStart;
+
+    private int mSize;
+
+    public SensorHistory(String locationId, String deviceId, int sensor, int capacity) {
+        mLocationId = locationId;
+        mDeviceId = deviceId;
+        mSensor = sensor;
+        mTimestamps = new long[capacity];
+        mValues = new int[capacity];
+    }
+
+    /**
+     * Creates a copy holding just the readings of the given history, oldest first.
+     */
+    public SensorHistory(SensorHistory history) {
+        this(history.mLocationId, history.mDeviceId, history.mSensor, history.mSize);
+
+        for (int i = 0; i < history.mSize; i++) {
+            mTimestamps[i] = history.getTimestamp(i);
+            mValues[i] = history.getValue(i);
+        }
+
+        mSize = history.mSize;
+    }
+
+    public static final Parcelable.Creator<SensorHistory> CREATOR
+            = new Parcelable.Creator<SensorHistory>() {
+
+        public SensorHistory createFromParcel(Parcel parcel) {
+            return new SensorHistory(parcel);
+        }
+
+        public SensorHistory[] newArray(int size) {
+            return new SensorHistory[size];
+        }
+
+    };
+
+    public SensorHistory(Parcel parcel) {
+        mLocationId = parcel.readString();
+        mDeviceId = parcel.readString();
+        mSensor = parcel.readInt();
+        mTimestamps = parcel.createLongArray();
+        mValues = parcel.createIntArray();
+        mSize = mValues.length;
+    }
+
+    @Override
+    public void writeToParcel(Parcel parcel, int flags) {
+        final SensorHistory compact = mStart == 0 && mSize == mValues.length
+                ? this : new SensorHistory(this);
+
+        parcel.writeString(mLocationId);
+        parcel.writeString(mDeviceId);
+        parcel.writeInt(mSensor);
+        parcel.writeLongArray(compact.mTimestamps);
+        parcel.writeIntArray(compact.mValues);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    /**
+     * Adds a reading, replacing the oldest one once the history is full.
+     */
+    public void add(long timestamp, int value) {
+        final int capacity = mValues.length;
+
+        if (capacity == 0) {
+            return;
+        }
+
+        final int index;
+
+        if (mSize < capacity) {
+            index = (mStart + mSize) % capacity;
+            mSize++;
+        } else {
+            index = mStart;
+            mStart = (mStart + 1) % capacity;
+        }
+
+        mTimestamps[index] = timestamp;
+        mValues[index] = value;
+    }
+
+    public String getLocationId() {
+        return mLocationId;
+    }
+
+    public String getDeviceId() {
+        return mDeviceId;
+    }
+
+    /** One of the SENSOR_ constants */
+    public int getSensor() {
+        return mSensor;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /** Returns the time of the reading, index 0 is the oldest */
+    public long getTimestamp(int index) {
+        return mTimestamps[(mStart + index) % mTimestamps.length];
+    }
+
+    /** Returns the value of the reading, index 0 is the oldest */
+    public int getValue(int index) {
+        return mValues[(mStart + index) % mValues.length];
+    }
+
+    @Override
+    public String toString() {
+        return mLocationId + "/" + mDeviceId + " sensor " + mSensor + ": " + mSize + " readings";
+    }
+
+}
@@ -0,0 +1,265 @@
+/*
+ * illumina, a pilight remote
+ *
+ * Copyright (c) 2014 Peter Heisig <http://google.com/+PeterHeisig>
+ *
+ * illumina is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * illumina is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with illumina. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package nl.pilight.illumina.service;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.Calendar;
+
+/**
+ * Running min, max, mean and last value of one sensor of a device for the current hour
+ * and day, in local time. Each reading updates all windows in constant time, a window
+ * starts over with the first reading after it ended. Values are fixed point like the
+ * ones of the device.
+ *
+ * Window boundaries are computed with a calendar in the default time zone, so a day
+ * around a daylight saving switch lasts 23 or 25 hours. Readings within the current
+ * windows do not need the calendar.
+ */
+public class SensorStatistics implements Parcelable {
+
+    public static final int WINDOW_HOUR = 0;
+    public static final int WINDOW_DAY = 1;
+
+    private static final int WINDOW_COUNT = 2;
+
+    private final String mLocationId;
+
+    private final String mDeviceId;
+
+    private final int mSensor;
+
+    private final long[] mWindowStarts = new long[WINDOW_COUNT];
+
+    /** End of the windows, exclusive */
+    private final long[] mWindowEnds = new long[WINDOW_COUNT];
+
+    private final int[] mCounts = new int[WINDOW_COUNT];
+
+    private final int[] mMins = new int[WINDOW_COUNT];
+
+    private final int[] mMaxs = new int[WINDOW_COUNT];
+
+    private final long[] mSums = new long[WINDOW_COUNT];
+
+    private long mLastTimestamp;
+
+    private int mLast;
+
+    public SensorStatistics(String locationId, String deviceId, int sensor) {
+        mLocationId = locationId;
+        mDeviceId = deviceId;
+        mSensor = sensor;
+    }
+
+    public SensorStatistics(SensorStatistics statistics) {
+        this(statistics.mLocationId, statistics.mDeviceId, statistics.mSensor);
+
+        System.arraycopy(statistics.mWindowStarts, 0, mWindowStarts, 0, mWindowStarts.length);
+        System.arraycopy(statistics.mWindowEnds, 0, mWindowEnds, 0, mWindowEnds.length);
+        System.arraycopy(statistics.mCounts, 0, mCounts, 0, mCounts.length);
+        System.arraycopy(statistics.mMins, 0, mMins, 0, mMins.length);
+        System.arraycopy(statistics.mMaxs, 0, mMaxs, 0, mMaxs.length);
+        System.arraycopy(statistics.mSums, 0, mSums, 0, mSums.length);
+        mLastTimestamp = statistics.mLastTimestamp;
+        mLast = statistics.mLast;
+    }
+
+    public static final Parcelable.Creator<SensorStatistics> CREATOR
+            = new Parcelable.Creator<SensorStatistics>() {
+
+        public SensorStatistics createFromParcel(Parcel parcel) {
+            return new SensorStatistics(parcel);
+        }
+
+        public SensorStatistics[] newArray(int size) {
+            return new SensorStatistics[size];
+        }
+
+    };
+
+    public SensorStatistics(Parcel parcel) {
+        this(parcel.readString(), parcel.readString(), parcel.readInt());
+
+        parcel.readLongArray(mWindowStarts);
+        parcel.readLongArray(mWindowEnds);
+        parcel.readIntArray(mCounts);
+        parcel.readIntArray(mMins);
+        parcel.readIntArray(mMaxs);
+        parcel.readLongArray(mSums);
+        mLastTimestamp = parcel.readLong();
+        mLast = parcel.readInt();
+    }
+
+    @Override
+    public void writeToParcel(Parcel parcel, int flags) {
+        parcel.writeString(mLocationId);
+        parcel.writeString(mDeviceId);
+        parcel.writeInt(mSensor);
+        parcel.writeLongArray(mWindowStarts);
+        parcel.writeLongArray(mWindowEnds);
+        parcel.writeIntArray(mCounts);
+        parcel.writeIntArray(mMins);
+        parcel.writeIntArray(mMaxs);
+        parcel.writeLongArray(mSums);
+        parcel.writeLong(mLastTimestamp);
+        parcel.writeInt(mLast);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    private static Calendar getWindowCalendar(int window, long timestamp) {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(timestamp);
+
+        if (window == WINDOW_DAY) {
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+        }
+
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar;
+    }
+
+    /**
+     * Returns the start of the window holding the given time.
+     */
+    static long getWindowStart(int window, long timestamp) {
+        return getWindowCalendar(window, timestamp).getTimeInMillis();
+    }
+
+    /**
+     * Moves the window to the one holding the given time.
+     */
+    private void startWindow(int window, long timestamp) {
+        final Calendar calendar = getWindowCalendar(window, timestamp);
+        mWindowStarts[window] = calendar.getTimeInMillis();
+
+        calendar.add(window == WINDOW_DAY ? Calendar.DAY_OF_MONTH : Calendar.HOUR_OF_DAY, 1);
+        mWindowEnds[window] = calendar.getTimeInMillis();
+    }
+
+    private boolean isInWindow(int window, long timestamp) {
+        return timestamp >= mWindowStarts[window] && timestamp < mWindowEnds[window];
+    }
+
+    void add(long timestamp, int value) {
+        add(timestamp, 1, value, value, value);
+
+        if (timestamp >= mLastTimestamp) {
+            mLastTimestamp = timestamp;
+            mLast = value;
+        }
+    }
+
+    /**
+     * Adds readings summed up by the history log, counted in the window holding the start
+     * of their bucket. The last value is left as it is.
+     */
+    void addAggregate(long timestamp, int count, int min, int max, long sum) {
+        if (count > 0) {
+            add(timestamp, count, min, max, sum);
+        }
+    }
+
+    private void add(long timestamp, int count, int min, int max, long sum) {
+        for (int window = 0; window < WINDOW_COUNT; window++) {
+            if (!isInWindow(window, timestamp)) {
+                if (timestamp < mWindowStarts[window]) {
+                    // late reading of a window already closed
+                    continue;
+                }
+
+                startWindow(window, timestamp);
+                mCounts[window] = 0;
+            }
+
+            if (mCounts[window] == 0) {
+                mMins[window] = min;
+                mMaxs[window] = max;
+                mSums[window] = 0;
+            }
+
+            mCounts[window] += count;
+            mMins[window] = Math.min(mMins[window], min);
+            mMaxs[window] = Math.max(mMaxs[window], max);
+            mSums[window] += sum;
+        }
+    }
+
+    public String getLocationId() {
+        return mLocationId;
+    }
+
+    public String getDeviceId() {
+        return mDeviceId;
+    }
+
+    /** One of the SENSOR_ constants of {@link SensorHistory} */
+    public int getSensor() {
+        return mSensor;
+    }
+
+    /**
+     * Returns the number of readings in the window around the given time, 0 if the
+     * statistics stem from an earlier window.
+     */
+    public int getCount(int window, long now) {
+        return isInWindow(window, now) ? mCounts[window] : 0;
+    }
+
+    /** Smallest value of the window, only meaningful if its count is not 0 */
+    public int getMin(int window) {
+        return mMins[window];
+    }
+
+    /** Largest value of the window, only meaningful if its count is not 0 */
+    public int getMax(int window) {
+        return mMaxs[window];
+    }
+
+    /** Mean value of the window, only meaningful if its count is not 0 */
+    public int getMean(int window) {
+        return mCounts[window] > 0 ? (int) (mSums[window] / mCounts[window]) : 0;
+    }
+
+    public int getLast() {
+        return mLast;
+    }
+
+    /** Time of the last reading in milliseconds since the epoch, 0 without any */
+    public long getLastTimestamp() {
+        return mLastTimestamp;
+    }
+
+    @Override
+    public String toString() {
+        return mLocationId + "/" + mDeviceId + " sensor " + mSensor + ": last " + mLast
+                + ", today " + mMins[WINDOW_DAY] + ".." + mMaxs[WINDOW_DAY]
+                + " (" + mCounts[WINDOW_DAY] + " readings)";
+    }
+
+}
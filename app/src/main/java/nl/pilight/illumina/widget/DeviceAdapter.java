@@ -43,23 +43,87 @@ import android.widget.RadioButton;
 import android.widget.SeekBar;
 import android.widget.TextView;
 
-import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
 import java.util.Timer;
 import java.util.TimerTask;
 
 import nl.pilight.illumina.R;
 import nl.pilight.illumina.pilight.Device;
+import nl.pilight.illumina.service.SensorHistory;
 
 public class DeviceAdapter extends ArrayAdapter<Device> {
 
+    private static final DeviceRenderer UNKNOWN_RENDERER = new DeviceRenderer(
+            R.layout.device_list_item_unknown) {
+        @Override
+        DeviceViewHolder createViewHolder(View view) {
+            return new UnknownViewHolder(view);
+        }
+    };
+
+    /** Renderers by the ordinal of their device type, see {@link #registerRenderer} */
+    private static final DeviceRenderer[] sRenderers
+            = new DeviceRenderer[Device.DeviceTypes.values().length];
+
+    static {
+        registerRenderer(Device.DeviceTypes.SWITCH, new DeviceRenderer(
+                R.layout.device_list_item_switch) {
+            @Override
+            DeviceViewHolder createViewHolder(View view) {
+                return new SwitchViewHolder(view);
+            }
+        });
+
+        registerRenderer(Device.DeviceTypes.CONTACT, new DeviceRenderer(
+                R.layout.device_list_item_contact) {
+            @Override
+            DeviceViewHolder createViewHolder(View view) {
+                return new ContactViewHolder(view);
+            }
+        });
+
+        registerRenderer(Device.DeviceTypes.DIMMER, new DeviceRenderer(
+                R.layout.device_list_item_dimmer) {
+            @Override
+            DeviceViewHolder createViewHolder(View view) {
+                return new DimmerViewHolder(view);
+            }
+        });
+
+        registerRenderer(Device.DeviceTypes.SCREEN, new DeviceRenderer(
+                R.layout.device_list_item_screen) {
+            @Override
+            DeviceViewHolder createViewHolder(View view) {
+                return new ScreenViewHolder(view);
+            }
+        });
+
+        registerRenderer(Device.DeviceTypes.WEATHER, new DeviceRenderer(
+                R.layout.device_list_item_weather) {
+            @Override
+            DeviceViewHolder createViewHolder(View view) {
+                return new WeatherViewHolder(view);
+            }
+        });
+
+        registerRenderer(Device.DeviceTypes.UNKNOWN, UNKNOWN_RENDERER);
+    }
+
     private DeviceChangeListener mDeviceChangeListener;
 
     private List<Device> mOriginalDeviceList;
 
+    /** Readings kept per sensor, a day of readings every five minutes like the service */
+    private static final int SENSOR_HISTORY_CAPACITY = 288;
+
+    /** Histories by device id, indexed by the SENSOR_ constants of {@link SensorHistory} */
+    private final Map<String, SensorHistory[]> mSensorHistories = new HashMap<>();
+
     private Filter mFilter = new Filter() {
         @Override
         protected FilterResults performFiltering(CharSequence charSequence) {
@@ -118,6 +182,19 @@ public class DeviceAdapter extends ArrayAdapter<Device> {
         typedArray.recycle();
     }
 
+    /**
+     * Shows the devices of the type with the renderer, to be called on the main thread
+     * before the first adapter is created.
+     */
+    static void registerRenderer(Device.DeviceTypes type, DeviceRenderer renderer) {
+        sRenderers[type.ordinal()] = renderer;
+    }
+
+    private static DeviceRenderer getRenderer(Device.DeviceTypes type) {
+        final DeviceRenderer renderer = sRenderers[type.ordinal()];
+        return renderer != null ? renderer : UNKNOWN_RENDERER;
+    }
+
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
         final LayoutInflater inflater = LayoutInflater.from(getContext());
@@ -128,37 +205,10 @@ public class DeviceAdapter extends ArrayAdapter<Device> {
         DeviceViewHolder viewHolder = null;
 
         if (view == null) {
-            switch (type) {
-                case SWITCH:
-                    view = inflater.inflate(R.layout.device_list_item_switch, parent, false);
-                    viewHolder = new SwitchViewHolder(view);
-                    break;
-
-                case CONTACT:
-                    view = inflater.inflate(R.layout.device_list_item_contact, parent, false);
-                    viewHolder = new ContactViewHolder(view);
-                    break;
-
-                case DIMMER:
-                    view = inflater.inflate(R.layout.device_list_item_dimmer, parent, false);
-                    viewHolder = new DimmerViewHolder(view);
-                    break;
-
-                case SCREEN:
-                    view = inflater.inflate(R.layout.device_list_item_screen, parent, false);
-                    viewHolder = new ScreenViewHolder(view);
-                    break;
-
-                case WEATHER:
-                    view = inflater.inflate(R.layout.device_list_item_weather, parent, false);
-                    viewHolder = new WeatherViewHolder(view);
-                    break;
-
-                case UNKNOWN:
-                    view = inflater.inflate(R.layout.device_list_item_unknown, parent, false);
-                    viewHolder = new UnknownViewHolder(view);
-                    break;
-            }
+            final DeviceRenderer renderer = getRenderer(type);
+
+            view = inflater.inflate(renderer.getLayout(), parent, false);
+            viewHolder = renderer.createViewHolder(view);
 
             assert view != null;
             view.setTag(viewHolder);
@@ -170,11 +220,55 @@ public class DeviceAdapter extends ArrayAdapter<Device> {
         assert viewHolder != null;
 
         viewHolder.setDevice(device);
+        viewHolder.setSensorHistories(mSensorHistories.get(device.getId()));
         viewHolder.setDeviceChangeListener(mDeviceChangeListener);
 
         return view;
     }
 
+    /**
+     * Shows the readings with the device of the history, replacing earlier ones.
+     */
+    public void setSensorHistory(SensorHistory history) {
+        SensorHistory[] histories = mSensorHistories.get(history.getDeviceId());
+
+        if (histories == null) {
+            histories = new SensorHistory[SensorHistory.SENSOR_BATTERY + 1];
+            mSensorHistories.put(history.getDeviceId(), histories);
+        }
+
+        // copied with room for the readings reported from now on
+        final SensorHistory copy = new SensorHistory(history.getLocationId(),
+                history.getDeviceId(), history.getSensor(), SENSOR_HISTORY_CAPACITY);
+
+        for (int i = 0; i < history.size(); i++) {
+            copy.add(history.getTimestamp(i), history.getValue(i));
+        }
+
+        histories[history.getSensor()] = copy;
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Appends a reading the device reported to the history of the sensor, shown once the
+     * device itself is updated in the adapter. Returns false if no history of the sensor
+     * was received yet.
+     */
+    public boolean addSensorReading(Device device, int sensor, int value) {
+        final SensorHistory[] histories = mSensorHistories.get(device.getId());
+
+        if (histories == null || histories[sensor] == null) {
+            return false;
+        }
+
+        // pilight's timestamps are seconds, devices without one are stamped on arrival
+        final long timestamp = device.getTimestamp() > 0
+                ? device.getTimestamp() * 1000L : System.currentTimeMillis();
+
+        histories[sensor].add(timestamp, value);
+        return true;
+    }
+
     @Override
     public int getItemViewType(int position) {
         return getItem(position).getType().ordinal();
@@ -182,7 +276,7 @@ public class DeviceAdapter extends ArrayAdapter<Device> {
 
     @Override
     public int getViewTypeCount() {
-        return 5;
+        return Device.DeviceTypes.values().length;
     }
 
     @Override
@@ -211,7 +305,7 @@ public class DeviceAdapter extends ArrayAdapter<Device> {
         return mFilter;
     }
 
-    private static abstract class DeviceViewHolder {
+    static abstract class DeviceViewHolder {
 
         private Device mDevice;
 
@@ -234,6 +328,12 @@ public class DeviceAdapter extends ArrayAdapter<Device> {
             return mDevice;
         }
 
+        /**
+         * Called after {@link #setDevice(Device)} with the recorded readings of the device,
+         * null if none were received.
+         */
+        void setSensorHistories(SensorHistory[] histories) {}
+
         void setDeviceChangeListener(DeviceChangeListener deviceChangeListener) {
             mDeviceChangeListener = deviceChangeListener;
         }
@@ -305,16 +405,18 @@ public class DeviceAdapter extends ArrayAdapter<Device> {
 
             mUpAction.setOnClickListener(new View.OnClickListener() {
                 @Override public void onClick(View view) {
-                    getDevice().setValue(Device.VALUE_UP);
-                    getDeviceChangeListener().onDeviceChange(getDevice(), Device.Properties.VALUE.ordinal());
+                    final Device device = new Device(getDevice());
+                    device.setValue(Device.VALUE_UP);
+                    getDeviceChangeListener().onDeviceChange(device, Device.Properties.VALUE.ordinal());
                 }
             });
 
             mDownAction.setOnClickListener(new View.OnClickListener() {
                 @Override
                 public void onClick(View view) {
-                    getDevice().setValue(Device.VALUE_DOWN);
-                    getDeviceChangeListener().onDeviceChange(getDevice(), Device.Properties.VALUE.ordinal());
+                    final Device device = new Device(getDevice());
+                    device.setValue(Device.VALUE_DOWN);
+                    getDeviceChangeListener().onDeviceChange(device, Device.Properties.VALUE.ordinal());
                 }
             });
         }
@@ -350,8 +452,9 @@ public class DeviceAdapter extends ArrayAdapter<Device> {
 
                 @Override
                 public void onStopTrackingTouch(SeekBar seekBar) {
-                    getDevice().setDimLevel(seekBar.getProgress());
-                    getDeviceChangeListener().onDeviceChange(getDevice(), Device.Properties.DIMLEVEL.ordinal());
+                    final Device device = new Device(getDevice());
+                    device.setDimLevel(seekBar.getProgress());
+                    getDeviceChangeListener().onDeviceChange(device, Device.Properties.DIMLEVEL.ordinal());
                 }
             });
         }
@@ -378,12 +481,11 @@ public class DeviceAdapter extends ArrayAdapter<Device> {
         private final ImageView mBatteryImage;
         private final ViewGroup mUpdate;
         private final ImageButton mUpdateBtn;
+        private final SparklineView mSparkline;
 
         private long mTimestamp;
 
-        private final DecimalFormat temperatureFormat = new DecimalFormat("#°");
-        private final DecimalFormat humidityFormat = new DecimalFormat("#%");
-        private final DecimalFormat timeFormat = new DecimalFormat("00");
+        private static final SensorTextCache sTexts = new SensorTextCache();
 
         private static Drawable sBatteryFullDrawable;
         private static Drawable sBatteryEmptyDrawable;
@@ -409,10 +511,36 @@ public class DeviceAdapter extends ArrayAdapter<Device> {
             mUpdate = (ViewGroup) view.findViewById(R.id.update);
             mUpdateBtn = (ImageButton) view.findViewById(R.id.update_btn);
 
+            mSparkline = (SparklineView) view.findViewById(R.id.sparkline);
+
             Calendar calender = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
             mTimestamp = calender.getTimeInMillis()/1000;
         }
 
+        /**
+         * Sets the text unless the view shows that very string already, cached texts
+         * are the same instances as long as the value does not change.
+         */
+        private static void setText(TextView view, String text) {
+            if (view.getText() != text) {
+                view.setText(text);
+            }
+        }
+
+        @Override
+        void setSensorHistories(SensorHistory[] histories) {
+            final Device device = getDevice();
+
+            mSparkline.setHistory(SparklineView.SERIES_TEMPERATURE,
+                    histories != null && device.isShowTemperature()
+                            ? histories[SensorHistory.SENSOR_TEMPERATURE] : null);
+            mSparkline.setHistory(SparklineView.SERIES_HUMIDITY,
+                    histories != null && device.isShowHumidity()
+                            ? histories[SensorHistory.SENSOR_HUMIDITY] : null);
+
+            mSparkline.setVisibility(mSparkline.hasLines() ? View.VISIBLE : View.GONE);
+        }
+
         static void setBatteryDrawables(Drawable full, Drawable empty) {
             sBatteryEmptyDrawable = empty;
             sBatteryFullDrawable = full;
@@ -423,8 +551,8 @@ public class DeviceAdapter extends ArrayAdapter<Device> {
 
             if (device.hasTemperatureValue() && device.isShowTemperature()) {
                 mTemperature.setVisibility(View.VISIBLE);
-                mTemperatureText.setText(temperatureFormat.format(
-                        (device.getTemperature() / Math.pow(10, device.getDeviceDecimals()))));
+                setText(mTemperatureText, sTexts.getTemperature(
+                        device.getTemperature(), device.getDeviceDivisor()));
             } else {
                 mTemperature.setVisibility(View.GONE);
             }
@@ -432,12 +560,8 @@ public class DeviceAdapter extends ArrayAdapter<Device> {
             if (device.hasSunriseValue() && device.hasSunsetValue() && device.isShowSunriseset()) {
                 mSunrise.setVisibility(View.VISIBLE);
                 mSunset.setVisibility(View.VISIBLE);
-                int hour = device.getSunrise() / 100;
-                int min = (device.getSunrise() - (hour*100));
-                mSunriseText.setText(timeFormat.format(Double.valueOf(hour)) + ":" + timeFormat.format(Double.valueOf(min)));
-                hour = device.getSunset() / 100;
-                min = (device.getSunset() - (hour*100));
-                mSunsetText.setText(timeFormat.format(Double.valueOf(hour)) + ":" + timeFormat.format(Double.valueOf(min)));
+                setText(mSunriseText, sTexts.getTime(device.getSunrise()));
+                setText(mSunsetText, sTexts.getTime(device.getSunset()));
             } else {
                 mSunrise.setVisibility(View.GONE);
                 mSunset.setVisibility(View.GONE);
@@ -445,8 +569,8 @@ public class DeviceAdapter extends ArrayAdapter<Device> {
 
             if (device.hasHumidityValue() && device.isShowHumidity()) {
                 mHumidity.setVisibility(View.VISIBLE);
-                mHumidityText.setText(humidityFormat.format(
-                        (device.getHumidity() / Math.pow(10, device.getDeviceDecimals()) / 100)));
+                setText(mHumidityText, sTexts.getHumidity(
+                        device.getHumidity(), device.getDeviceDivisor()));
             } else {
                 mHumidity.setVisibility(View.GONE);
             }
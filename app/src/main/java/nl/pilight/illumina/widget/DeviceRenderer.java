@@ -0,0 +1,44 @@
+/*
+ * illumina, a pilight remote
+ *
+ * Copyright (c) 2014 Peter Heisig <http://google.com/+PeterHeisig>
+ *
+ * illumina is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * illumina is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with illumina. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package nl.pilight.illumina.widget;
+
+import android.view.View;
+
+/**
+ * Creates the list item of one device type, registered with
+ * {@link DeviceAdapter#registerRenderer(nl.pilight.illumina.pilight.Device.DeviceTypes,
+ * DeviceRenderer)}.
+ */
+abstract class DeviceRenderer {
+
+    private final int mLayout;
+
+    DeviceRenderer(int layout) {
+        mLayout = layout;
+    }
+
+    int getLayout() {
+        return mLayout;
+    }
+
+    abstract DeviceAdapter.DeviceViewHolder createViewHolder(View view);
+
+}
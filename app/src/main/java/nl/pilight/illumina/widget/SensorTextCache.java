@@ -0,0 +1,127 @@
+/*
+ * illumina, a pilight remote
+ *
+ * Copyright (c) 2014 Peter Heisig <http://google.com/+PeterHeisig>
+ *
+ * illumina is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * illumina is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with illumina. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package nl.pilight.illumina.widget;
+
+import java.text.DecimalFormat;
+import java.util.Locale;
+
+/**
+ * Texts of sensor values, formatted once per value, scale and locale. Rebinding a row
+ * whose values did not change gets the very same strings back without allocating.
+ *
+ * The cache is direct mapped, a colliding value just replaces the older text. It is only
+ * used on the main thread.
+ */
+final class SensorTextCache {
+
+    private static final int SLOT_BITS = 7;
+    private static final int SIZE = 1 << SLOT_BITS;
+
+    private static final int KIND_TEMPERATURE = 1;
+    private static final int KIND_HUMIDITY = 2;
+    private static final int KIND_TIME = 3;
+
+    private final long[] mKeys = new long[SIZE];
+    private final String[] mTexts = new String[SIZE];
+
+    private Locale mLocale;
+
+    private DecimalFormat mTemperatureFormat;
+    private DecimalFormat mHumidityFormat;
+    private DecimalFormat mTimeFormat;
+
+    /**
+     * @param value fixed point temperature
+     * @param divisor scale of the value, see {@link nl.pilight.illumina.pilight.Device#getDeviceDivisor()}
+     */
+    String getTemperature(int value, int divisor) {
+        final long key = getKey(KIND_TEMPERATURE, value, divisor);
+        final int slot = getSlot(key);
+
+        if (mTexts[slot] == null || mKeys[slot] != key) {
+            put(slot, key, mTemperatureFormat.format(value / (double) divisor));
+        }
+
+        return mTexts[slot];
+    }
+
+    /**
+     * @param value fixed point humidity in percent
+     * @param divisor scale of the value
+     */
+    String getHumidity(int value, int divisor) {
+        final long key = getKey(KIND_HUMIDITY, value, divisor);
+        final int slot = getSlot(key);
+
+        if (mTexts[slot] == null || mKeys[slot] != key) {
+            put(slot, key, mHumidityFormat.format(value / (double) divisor / 100));
+        }
+
+        return mTexts[slot];
+    }
+
+    /**
+     * @param time hours and minutes as pilight sends them, like 745 for 07:45
+     */
+    String getTime(int time) {
+        final long key = getKey(KIND_TIME, time, 1);
+        final int slot = getSlot(key);
+
+        if (mTexts[slot] == null || mKeys[slot] != key) {
+            put(slot, key, mTimeFormat.format(time / 100) + ":" + mTimeFormat.format(time % 100));
+        }
+
+        return mTexts[slot];
+    }
+
+    private long getKey(int kind, int value, int divisor) {
+        final Locale locale = Locale.getDefault();
+
+        if (!locale.equals(mLocale)) {
+            onLocaleChanged(locale);
+        }
+
+        // divisors stay below 2^30, which leaves the two top bits for the kind
+        return ((long) kind << 62) | ((long) divisor << 32) | (value & 0xffffffffL);
+    }
+
+    private static int getSlot(long key) {
+        final long hash = key * 0x9e3779b97f4a7c15L;
+        return (int) (hash >>> (64 - SLOT_BITS));
+    }
+
+    private void put(int slot, long key, String text) {
+        mKeys[slot] = key;
+        mTexts[slot] = text;
+    }
+
+    private void onLocaleChanged(Locale locale) {
+        mLocale = locale;
+        mTemperatureFormat = new DecimalFormat("#°");
+        mHumidityFormat = new DecimalFormat("#%");
+        mTimeFormat = new DecimalFormat("00");
+
+        for (int i = 0; i < SIZE; i++) {
+            mTexts[i] = null;
+        }
+    }
+
+}
@@ -0,0 +1,218 @@
+/*
+ * illumina, a pilight remote
+ *
+ * Copyright (c) 2014 Peter Heisig <http://google.com/+PeterHeisig>
+ *
+ * illumina is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * illumina is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with illumina. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package nl.pilight.illumina.widget;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.util.AttributeSet;
+import android.view.View;
+
+import nl.pilight.illumina.R;
+import nl.pilight.illumina.service.SensorHistory;
+
+/**
+ * Draws the recent readings of temperature and humidity as lines on a shared time axis,
+ * each scaled to its own range. The readings are copied into preallocated buffers when
+ * a history is set and the paths are only rebuilt when readings or size change, so
+ * drawing does not allocate.
+ */
+public class SparklineView extends View {
+
+    public static final int SERIES_TEMPERATURE = 0;
+    public static final int SERIES_HUMIDITY = 1;
+
+    private static final int SERIES_COUNT = 2;
+
+    /** Most recent readings drawn per series */
+    private static final int MAX_POINTS = 288;
+
+    private static final float STROKE_WIDTH = 1.5f; // dp
+
+    private final long[][] mTimestamps = new long[SERIES_COUNT][MAX_POINTS];
+
+    private final float[][] mValues = new float[SERIES_COUNT][MAX_POINTS];
+
+    private final int[] mSizes = new int[SERIES_COUNT];
+
+    private final SensorHistory[] mHistories = new SensorHistory[SERIES_COUNT];
+
+    private final Path[] mPaths = { new Path(), new Path() };
+
+    private final Paint[] mPaints = { new Paint(Paint.ANTI_ALIAS_FLAG),
+            new Paint(Paint.ANTI_ALIAS_FLAG) };
+
+    private boolean mArePathsDirty;
+
+    public SparklineView(Context context) {
+        this(context, null);
+    }
+
+    public SparklineView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public SparklineView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+
+        final float strokeWidth = STROKE_WIDTH * getResources().getDisplayMetrics().density;
+
+        mPaints[SERIES_TEMPERATURE].setColor(getResources().getColor(R.color.sparkline_temperature));
+        mPaints[SERIES_HUMIDITY].setColor(getResources().getColor(R.color.sparkline_humidity));
+
+        for (Paint paint : mPaints) {
+            paint.setStyle(Paint.Style.STROKE);
+            paint.setStrokeWidth(strokeWidth);
+            paint.setStrokeJoin(Paint.Join.ROUND);
+        }
+    }
+
+    /**
+     * Shows the readings of the history as the series, or no line for null. Setting the
+     * history shown already does nothing unless readings were appended to it since.
+     */
+    public void setHistory(int series, SensorHistory history) {
+        if (mHistories[series] == history && !hasNewReadings(series, history)) {
+            return;
+        }
+
+        mHistories[series] = history;
+
+        final int size = history != null ? Math.min(history.size(), MAX_POINTS) : 0;
+        final int skipped = history != null ? history.size() - size : 0;
+
+        for (int i = 0; i < size; i++) {
+            mTimestamps[series][i] = history.getTimestamp(skipped + i);
+            mValues[series][i] = history.getValue(skipped + i);
+        }
+
+        mSizes[series] = size;
+        mArePathsDirty = true;
+        invalidate();
+    }
+
+    /**
+     * Returns whether the history holds readings not copied yet, readings are appended
+     * in time order.
+     */
+    private boolean hasNewReadings(int series, SensorHistory history) {
+        if (history == null) {
+            return false;
+        }
+
+        final int size = mSizes[series];
+
+        return Math.min(history.size(), MAX_POINTS) != size
+                || (size > 0 && history.getTimestamp(history.size() - 1)
+                        != mTimestamps[series][size - 1]);
+    }
+
+    /**
+     * Returns whether any series has enough readings to draw a line.
+     */
+    public boolean hasLines() {
+        for (int series = 0; series < SERIES_COUNT; series++) {
+            if (mSizes[series] > 1) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+        super.onSizeChanged(width, height, oldWidth, oldHeight);
+        mArePathsDirty = true;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+
+        if (mArePathsDirty) {
+            buildPaths();
+            mArePathsDirty = false;
+        }
+
+        for (int series = 0; series < SERIES_COUNT; series++) {
+            if (mSizes[series] > 1) {
+                canvas.drawPath(mPaths[series], mPaints[series]);
+            }
+        }
+    }
+
+    private void buildPaths() {
+        long from = Long.MAX_VALUE;
+        long to = Long.MIN_VALUE;
+
+        for (int series = 0; series < SERIES_COUNT; series++) {
+            if (mSizes[series] > 1) {
+                from = Math.min(from, mTimestamps[series][0]);
+                to = Math.max(to, mTimestamps[series][mSizes[series] - 1]);
+            }
+        }
+
+        final float inset = mPaints[0].getStrokeWidth();
+        final float left = getPaddingLeft() + inset;
+        final float width = getWidth() - getPaddingRight() - inset - left;
+        final float top = getPaddingTop() + inset;
+        final float height = getHeight() - getPaddingBottom() - inset - top;
+        final float duration = Math.max(1, to - from);
+
+        for (int series = 0; series < SERIES_COUNT; series++) {
+            final Path path = mPaths[series];
+            final int size = mSizes[series];
+            final float[] values = mValues[series];
+
+            path.rewind();
+
+            if (size < 2) {
+                continue;
+            }
+
+            float min = values[0];
+            float max = values[0];
+
+            for (int i = 1; i < size; i++) {
+                min = Math.min(min, values[i]);
+                max = Math.max(max, values[i]);
+            }
+
+            // a flat line is drawn in the middle
+            final float range = max > min ? max - min : 2;
+            final float base = max > min ? min : min - 1;
+
+            for (int i = 0; i < size; i++) {
+                final float x = left + (mTimestamps[series][i] - from) / duration * width;
+                final float y = top + height - (values[i] - base) / range * height;
+
+                if (i == 0) {
+                    path.moveTo(x, y);
+                } else {
+                    path.lineTo(x, y);
+                }
+            }
+        }
+    }
+
+}